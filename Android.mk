@@ -29,3 +29,6 @@ LOCAL_PACKAGE_NAME := LoanSharkr
 LOCAL_SDK_VERSION := current
 
 include $(BUILD_PACKAGE)
+
+# Build the tests too
+include $(call all-makefiles-under,$(LOCAL_PATH))
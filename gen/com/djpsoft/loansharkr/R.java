@@ -41,6 +41,7 @@ public final class R {
         public static final int radioGroup1=0x7f050012;
         public static final int save_client_changes=0x7f050005;
         public static final int save_loan_changes=0x7f050016;
+        public static final int search=0x7f05001b;
         public static final int take_photo=0x7f050003;
         public static final int title=0x7f05000b;
         public static final int total_payment_text=0x7f050017;
@@ -63,9 +64,16 @@ public final class R {
         public static final int client=0x7f04000a;
         public static final int client_loans=0x7f040012;
         public static final int debt=0x7f04001a;
+        public static final int due_notification_text=0x7f04002e;
+        public static final int due_notification_title=0x7f04002d;
         public static final int edit_client=0x7f04000e;
         public static final int error_client_edit_form_no_client=0x7f040022;
         public static final int error_db_update=0x7f040026;
+        public static final int error_import_date=0x7f04002b;
+        public static final int error_import_field_count=0x7f040029;
+        public static final int error_import_no_client=0x7f04002a;
+        public static final int error_import_record_type=0x7f040028;
+        public static final int error_import_status=0x7f04002c;
         public static final int error_loan_edit_form=0x7f040023;
         public static final int error_loan_edit_form_no_debt=0x7f040024;
         public static final int error_loan_edit_form_no_weeklyinterest=0x7f040025;
@@ -80,6 +88,7 @@ public final class R {
         public static final int menu_add_loan=0x7f040013;
         public static final int menu_delete_client=0x7f040007;
         public static final int menu_delete_loan=0x7f040015;
+        public static final int menu_dump_metrics=0x7f04002f;
         public static final int menu_edit_client=0x7f040008;
         public static final int menu_edit_loan=0x7f040014;
         public static final int menu_view_client_loans=0x7f040009;
@@ -93,8 +102,10 @@ public final class R {
         public static final int phone=0x7f04000b;
         public static final int photo=0x7f040010;
         public static final int save_changes=0x7f04000d;
+        public static final int search_hint=0x7f040027;
         public static final int set_date=0x7f040017;
         public static final int take_photo=0x7f04000f;
+        public static final int total_repayment_overflow=0x7f040030;
         public static final int total_to_pay=0x7f04001c;
         public static final int weekly_interest=0x7f04001b;
     }
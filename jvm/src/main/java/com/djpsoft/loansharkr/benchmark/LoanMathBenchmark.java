@@ -0,0 +1,105 @@
+package com.djpsoft.loansharkr.benchmark;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.djpsoft.loansharkr.LoanMath;
+import com.djpsoft.loansharkr.Money;
+
+/**
+ * The interest engine (BigDecimal and long cents) for short, long and
+ * extreme loan terms, and the currency conversions and overdue check the
+ * list and edit screens call for every loan.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoanMathBenchmark {
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    /**
+     * A loan of $1,234.56 at 10% a week
+     */
+    @State(Scope.Thread)
+    public static class Loan {
+        /**
+         * The loan term in days: a month, two years and a maturity date
+         * mistyped as 2099
+         */
+        @Param({ "30", "730", "32000" })
+        public int mTermDays;
+
+        long mStart;
+        long mEnd;
+        Date mStartDate;
+        Date mEndDate;
+        long mDebt = 123456;
+        long mWeeklyInterest = 1000;
+        BigDecimal mDebtAmount;
+        BigDecimal mWeeklyInterestAmount;
+
+        @Setup
+        public void setUp() {
+            mStart = 1300000000000L;
+            // a few hours past the last whole day, so there is a partial week
+            mEnd = mStart + mTermDays * DAY_MS + 5 * 60 * 60 * 1000;
+            mStartDate = new Date(mStart);
+            mEndDate = new Date(mEnd);
+            mDebtAmount = LoanMath.ConvertIntegerToCurrency(mDebt);
+            mWeeklyInterestAmount = LoanMath.ConvertIntegerToCurrency(mWeeklyInterest);
+        }
+    }
+
+    /**
+     * Values read from the database or typed into the edit screen
+     */
+    @State(Scope.Thread)
+    public static class Values {
+        long mCents = 1234567;
+        BigDecimal mCurrency = new BigDecimal("12345.67");
+        Date mCurrentDate = new Date(1300000000000L);
+        Date mMaturityDate = new Date(1300000000000L - 3 * DAY_MS);
+    }
+
+    @Benchmark
+    public BigDecimal calculateTotalRepayment(Loan loan) {
+        return LoanMath.CalculateTotalRepayment(loan.mStartDate, loan.mEndDate, loan.mDebtAmount,
+                loan.mWeeklyInterestAmount);
+    }
+
+    @Benchmark
+    public long calculateTotalRepaymentCents(Loan loan) {
+        return Money.CalculateTotalRepayment(loan.mStart, loan.mEnd, loan.mDebt, loan.mWeeklyInterest);
+    }
+
+    @Benchmark
+    public long convertCurrencyToInteger(Values values) {
+        return LoanMath.ConvertCurrencyToInteger(values.mCurrency);
+    }
+
+    @Benchmark
+    public BigDecimal convertIntegerToCurrency(Values values) {
+        return LoanMath.ConvertIntegerToCurrency(values.mCents);
+    }
+
+    @Benchmark
+    public boolean loanIsOverdue(Values values) {
+        return LoanMath.LoanIsOverdue(values.mCurrentDate, values.mMaturityDate);
+    }
+}
@@ -0,0 +1,147 @@
+package com.djpsoft.loansharkr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Date;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the closed form interest calculation against the week by week
+ * loop it replaced, which is kept here as the reference.
+ */
+public class LoanMathTest {
+
+    private static final long WEEK_MS = 1000L * 60 * 60 * 24 * 7;
+    private static final int CORPUS_SIZE = 20000;
+
+    /**
+     * The original LoanHelper.CalculateTotalRepayment, one week at a time
+     * in exact arithmetic
+     */
+    private static BigDecimal WeekByWeek(Date startDate, Date endDate, BigDecimal debt, BigDecimal weekly_interest) {
+        BigDecimal diff_ms = new BigDecimal(endDate.getTime() - startDate.getTime());
+        if (diff_ms.compareTo(new BigDecimal(0)) == 1) {
+            BigDecimal week_ms = new BigDecimal(1000 * 60 * 60 * 24 * 7);
+            BigDecimal weeks = diff_ms.divide(week_ms, 10, RoundingMode.HALF_EVEN);
+            BigDecimal interest_multiplier = weekly_interest.divide(new BigDecimal(100));
+            while (weeks.compareTo(new BigDecimal(0)) == 1) {
+                BigDecimal earnedInterest = debt.multiply(interest_multiplier);
+                // if this is a partial week then modify the earned interest to reflect that
+                if (weeks.compareTo(new BigDecimal(1)) == -1) {
+                    earnedInterest = earnedInterest.multiply(weeks);
+                }
+                debt = debt.add(earnedInterest);
+                weeks = weeks.subtract(new BigDecimal(1));
+            }
+        }
+        return debt.setScale(2, RoundingMode.HALF_EVEN);
+    }
+
+    private static void assertSameAsWeekByWeek(long start, long end, long debt, long weeklyInterest) {
+        Date startDate = new Date(start);
+        Date endDate = new Date(end);
+        BigDecimal debtAmount = LoanMath.ConvertIntegerToCurrency(debt);
+        BigDecimal interest = LoanMath.ConvertIntegerToCurrency(weeklyInterest);
+        String loan = "debt=" + debt + " interest=" + weeklyInterest + " ms=" + (end - start);
+
+        BigDecimal expected = WeekByWeek(startDate, endDate, debtAmount, interest);
+        assertEquals(loan, expected, LoanMath.CalculateTotalRepayment(startDate, endDate, debtAmount, interest));
+        long cents = Money.CalculateTotalRepayment(start, end, debt, weeklyInterest);
+        if (expected.movePointRight(2).toBigInteger().bitLength() < 64) {
+            assertEquals(loan, LoanMath.ConvertCurrencyToInteger(expected), cents);
+        }
+        else {
+            assertEquals(loan, Money.OVERFLOW, cents);
+        }
+    }
+
+    @Test
+    public void matchesWeekByWeekOnRandomLoans() {
+        Random random = new Random(1);
+        long now = 1300000000000L;
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            // debts from a cent to $100,000 spread over the orders of magnitude
+            long debt = Math.max(1, (long) Math.pow(10, random.nextDouble() * 7));
+            // up to 50% a week, in hundredths of a percent
+            long weeklyInterest = random.nextInt(5001);
+            // up to three years, to the millisecond so partial weeks are common
+            long term = (long) (random.nextDouble() * 156 * WEEK_MS);
+            long start = now - (long) (random.nextDouble() * 365 * 24 * 60 * 60 * 1000L);
+            assertSameAsWeekByWeek(start, start + term, debt, weeklyInterest);
+        }
+    }
+
+    @Test
+    public void matchesWeekByWeekOnWholeWeeks() {
+        Random random = new Random(2);
+        for (int i = 0; i < CORPUS_SIZE / 10; i++) {
+            long debt = 1 + random.nextInt(10000000);
+            long weeklyInterest = random.nextInt(5001);
+            long weeks = random.nextInt(260);
+            assertSameAsWeekByWeek(0, weeks * WEEK_MS, debt, weeklyInterest);
+        }
+    }
+
+    @Test
+    public void matchesWeekByWeekOnEdgeCases() {
+        // not started, ended before it started, no interest
+        assertSameAsWeekByWeek(0, 0, 10000, 1000);
+        assertSameAsWeekByWeek(WEEK_MS, 0, 10000, 1000);
+        assertSameAsWeekByWeek(0, 52 * WEEK_MS, 10000, 0);
+        // a millisecond and a millisecond short of a week
+        assertSameAsWeekByWeek(0, 1, 10000000, 5000);
+        assertSameAsWeekByWeek(0, WEEK_MS - 1, 10000000, 5000);
+        // a ten year loan
+        assertSameAsWeekByWeek(0, 520 * WEEK_MS + 12345, 123456, 1000);
+    }
+
+    @Test
+    public void handlesExtremeTerms() {
+        // 10% a week for 32000 days, far more than a long's worth of cents
+        BigDecimal expected = WeekByWeek(new Date(0), new Date(32000L * 24 * 60 * 60 * 1000),
+                new BigDecimal("100.00"), new BigDecimal("10"));
+        BigDecimal total = LoanMath.CalculateTotalRepayment(new Date(0), new Date(32000L * 24 * 60 * 60 * 1000),
+                new BigDecimal("100.00"), new BigDecimal("10"));
+        MathContext digits = new MathContext(60);
+        assertEquals(expected.round(digits), total.round(digits));
+        assertEquals(Money.OVERFLOW, Money.CalculateTotalRepayment(0, 32000L * 24 * 60 * 60 * 1000, 10000, 1000));
+
+        // a maturity date mistyped as the end of time, more weeks than an int
+        Date end = new Date(Long.MAX_VALUE);
+        assertEquals(new BigDecimal("100.00"), LoanMath.CalculateTotalRepayment(new Date(0), end,
+                new BigDecimal("100.00"), new BigDecimal("0")));
+        assertEquals(10000, Money.CalculateTotalRepayment(0, Long.MAX_VALUE, 10000, 0));
+        assertTrue(LoanMath.CalculateTotalRepayment(new Date(0), end,
+                new BigDecimal("100.00"), new BigDecimal("0.01")).compareTo(expected) > 0);
+        assertEquals(Money.OVERFLOW, Money.CalculateTotalRepayment(0, Long.MAX_VALUE, 10000, 1));
+    }
+
+    @Test
+    public void roundsExactHalfCentsToEven() {
+        // 0.01 and 0.03 at 50% for a week are exactly 0.015 and 0.045
+        assertSameAsWeekByWeek(0, WEEK_MS, 1, 5000);
+        assertSameAsWeekByWeek(0, WEEK_MS, 3, 5000);
+        assertEquals(new BigDecimal("0.02"), LoanMath.CalculateTotalRepayment(new Date(0), new Date(WEEK_MS),
+                new BigDecimal("0.01"), new BigDecimal("50")));
+        assertEquals(new BigDecimal("0.04"), LoanMath.CalculateTotalRepayment(new Date(0), new Date(WEEK_MS),
+                new BigDecimal("0.03"), new BigDecimal("50")));
+    }
+
+    @Test
+    public void doesNotRoundWithinTheErrorBoundOfAHalfCent() {
+        // a half cent at the 48 digits the fast path works to
+        BigDecimal halfCent = new BigDecimal("1234.565").setScale(44);
+        BigDecimal ulp = halfCent.ulp();
+        // 30 ulps is the error bound of the fast path
+        assertFalse(LoanMath.IsSafeToRound(halfCent.add(ulp.multiply(new BigDecimal(30)))));
+        assertFalse(LoanMath.IsSafeToRound(halfCent.subtract(ulp.multiply(new BigDecimal(30)))));
+        assertTrue(LoanMath.IsSafeToRound(new BigDecimal("1234.5649").setScale(44)));
+    }
+}
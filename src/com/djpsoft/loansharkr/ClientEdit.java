@@ -16,15 +16,13 @@
 
 package com.djpsoft.loansharkr;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 
 import android.app.Activity;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Bitmap.CompressFormat;
-import android.graphics.drawable.BitmapDrawable;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Button;
@@ -36,19 +34,28 @@ public class ClientEdit extends Activity {
 
     private static final int ACTIVITY_PHOTO = 0;
 
-    private LoanSharkrDbAdapter mDbHelper;
+    // saved state key of the file a new photo was encoded into
+    private static final String PHOTO_FILE = "photo_file";
+
+    private DbWorker mDbWorker;
+    private DbWorker.Job<Long> mSaveJob;
+    private DbWorker.Job<Bitmap> mPhotoJob;
     private EditText mClientText;
     private EditText mPhoneText;
     private EditText mNotesText;
     private ImageView mPhoto;
+    private PhotoLoader mPhotoLoader;
+    // the new photo, encoded by PhotoEncoder, or null if it is unchanged
+    private File mPhotoFile;
+    private int mPhotoVersion;
     private Long mRowId;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        mDbHelper = new LoanSharkrDbAdapter(this);
-        mDbHelper.open();
+        mDbWorker = new DbWorker(this);
+        mPhotoLoader = new PhotoLoader(this);
 
         setContentView(R.layout.client_edit);
         setTitle(R.string.edit_client);
@@ -61,13 +68,17 @@ public class ClientEdit extends Activity {
         mRowId = null;
         if (savedInstanceState != null) {
             mRowId = (Long) savedInstanceState.getSerializable(LoanSharkrDbAdapter.KEY_ROWID);
+            mPhotoVersion = (Integer) savedInstanceState.getSerializable(LoanSharkrDbAdapter.KEY_PHOTOVERSION);
             mClientText.setText((String)savedInstanceState.getSerializable(LoanSharkrDbAdapter.KEY_CLIENT));
             mPhoneText.setText((String)savedInstanceState.getSerializable(LoanSharkrDbAdapter.KEY_PHONE));
             mNotesText.setText((String)savedInstanceState.getSerializable(LoanSharkrDbAdapter.KEY_NOTES));
-            if (savedInstanceState.containsKey(LoanSharkrDbAdapter.KEY_PHOTO)) {
-                byte[] imgData = (byte[]) savedInstanceState.getSerializable(LoanSharkrDbAdapter.KEY_PHOTO);
-                Bitmap photo = BitmapFactory.decodeByteArray(imgData, 0, imgData.length);
-                mPhoto.setImageBitmap(photo);
+            mPhotoFile = (File) savedInstanceState.getSerializable(PHOTO_FILE);
+            if (mPhotoFile != null) {
+                loadPhotoFromFile();
+            }
+            else if (mRowId != null) {
+                // the photo is unchanged so reload it from the db
+                mPhotoLoader.loadPhoto(mPhoto, mRowId, mPhotoVersion);
             }
         }
         else {
@@ -88,10 +99,7 @@ public class ClientEdit extends Activity {
         Button saveButton = (Button) findViewById(R.id.save_client_changes);
         saveButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View view) {
-                if (saveStateToDb() == true) {
-                    setResult(RESULT_OK);
-                    finish();
-                }
+                saveStateToDb();
             }
         });
     }
@@ -102,24 +110,85 @@ public class ClientEdit extends Activity {
         if (requestCode == ACTIVITY_PHOTO && resultCode != 0) {
             Bitmap thumbnail = (Bitmap) data.getExtras().get("data");
             mPhoto.setImageBitmap(thumbnail);
+            if (mPhotoJob != null) {
+                mPhotoJob.cancel();
+                mPhotoJob = null;
+            }
+            if (mPhotoFile != null) {
+                PhotoEncoder.delete(mPhotoFile);
+            }
+            // encoded now, in the background, so that neither a rotation nor
+            // the save has to compress it again
+            mPhotoFile = PhotoEncoder.newPhotoFile(this);
+            PhotoEncoder.encode(thumbnail, mPhotoFile);
         }
     }
 
+    /**
+     * Display the new photo after the activity is recreated, it is decoded
+     * from the file it was encoded into in the background
+     */
+    private void loadPhotoFromFile() {
+        final File photoFile = mPhotoFile;
+        mPhotoJob = mDbWorker.query(new DbWorker.Job<Bitmap>() {
+            @Override
+            protected Bitmap doInBackground(LoanSharkrDbAdapter db) {
+                try {
+                    byte[] data = PhotoEncoder.read(photoFile);
+                    return PhotoLoader.decodeSampledPhoto(data, 0, 0);
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            protected void onResult(Bitmap photo) {
+                mPhotoJob = null;
+                if (photo != null) {
+                    mPhoto.setImageBitmap(photo);
+                }
+            }
+
+            @Override
+            protected void onError(Exception e) {
+                super.onError(e);
+                mPhotoJob = null;
+            }
+        });
+    }
+
     private void populateFieldsFromDb() {
         if (mRowId != null) {
-            Cursor client = mDbHelper.fetchClient(mRowId);
-            startManagingCursor(client);
-            mClientText.setText(client.getString(
-                    client.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_CLIENT)));
-            mPhoneText.setText(client.getString(
-                    client.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHONE)));
-            mNotesText.setText(client.getString(
-                client.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_NOTES)));
-            byte[] imgData = client.getBlob(client.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHOTO));
-            if (imgData != null) {
-                Bitmap photo = BitmapFactory.decodeByteArray(imgData, 0, imgData.length);
-                mPhoto.setImageBitmap(photo);
-            }
+            final long rowId = mRowId;
+            mDbWorker.query(new DbWorker.Job<Cursor>() {
+                @Override
+                protected Cursor doInBackground(LoanSharkrDbAdapter db) {
+                    return db.fetchClient(rowId);
+                }
+
+                @Override
+                protected void onResult(Cursor client) {
+                    try {
+                        mClientText.setText(client.getString(
+                                client.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_CLIENT)));
+                        mPhoneText.setText(client.getString(
+                                client.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHONE)));
+                        mNotesText.setText(client.getString(
+                            client.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_NOTES)));
+                        mPhotoVersion = client.getInt(client.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHOTOVERSION));
+                        mPhotoLoader.loadPhoto(mPhoto, rowId, mPhotoVersion);
+                    }
+                    finally {
+                        client.close();
+                    }
+                }
+
+                @Override
+                protected void onCancelled(Cursor client) {
+                    client.close();
+                }
+            });
         }
     }
 
@@ -133,6 +202,18 @@ public class ClientEdit extends Activity {
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDbWorker.shutdown();
+        mPhotoLoader.shutdown();
+        // a new photo that is not being saved is discarded with the edit, a
+        // save in progress removes the file itself
+        if (isFinishing() && mSaveJob == null && mPhotoFile != null) {
+            PhotoEncoder.delete(mPhotoFile);
+        }
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -145,45 +226,85 @@ public class ClientEdit extends Activity {
         outState.putSerializable(LoanSharkrDbAdapter.KEY_CLIENT, mClientText.getText().toString());
         outState.putSerializable(LoanSharkrDbAdapter.KEY_PHONE, mPhoneText.getText().toString());
         outState.putSerializable(LoanSharkrDbAdapter.KEY_NOTES, mNotesText.getText().toString());
-        BitmapDrawable drawable = (BitmapDrawable)mPhoto.getDrawable();
-        if (drawable != null) {
-            Bitmap photo = drawable.getBitmap();
-            ByteArrayOutputStream s = new ByteArrayOutputStream();
-            photo.compress(CompressFormat.JPEG, LoanSharkrDbAdapter.JPEG_QUALITY, s);
-            outState.putSerializable(LoanSharkrDbAdapter.KEY_PHOTO, s.toByteArray());
-        }
+        outState.putSerializable(LoanSharkrDbAdapter.KEY_PHOTOVERSION, mPhotoVersion);
+        // only the file a new photo was encoded into is kept, an unchanged
+        // photo is reloaded from the db
+        outState.putSerializable(PHOTO_FILE, mPhotoFile);
     }
 
-    private boolean saveStateToDb() {
-        try {
-            if (mClientText.getText().length() == 0) {
-                Toast.makeText(this, R.string.error_client_edit_form_no_client, Toast.LENGTH_LONG).show();
-                return false;
-            }
-            String client = mClientText.getText().toString();
-            String phone = mPhoneText.getText().toString();
-            String notes = mNotesText.getText().toString();
-            BitmapDrawable drawable = (BitmapDrawable)mPhoto.getDrawable();
-            Bitmap photo = null;
-            if (drawable != null) {
-                photo = drawable.getBitmap();
+    /**
+     * Validate the form and save it in the background, the activity finishes
+     * once the save has completed. If the client could not be saved an
+     * error is shown and the form (and any new photo) is kept.
+     */
+    private void saveStateToDb() {
+        if (mSaveJob != null) {
+            return;
+        }
+        final String client = mClientText.getText().toString();
+        int error = LoanHelper.ValidateClient(client);
+        if (error != 0) {
+            Toast.makeText(this, error, Toast.LENGTH_LONG).show();
+            return;
+        }
+        final String phone = mPhoneText.getText().toString();
+        final String notes = mNotesText.getText().toString();
+        // only save the photo if a new one was taken, the displayed photo
+        // may be the default or a downsampled copy of the stored one
+        final File photoFile = mPhotoFile;
+        final Long rowId = mRowId;
+
+        mSaveJob = mDbWorker.update(new DbWorker.Job<Long>() {
+            @Override
+            protected Long doInBackground(LoanSharkrDbAdapter db) {
+                // the photo is stored as it was encoded when it was taken
+                byte[] photo = null;
+                if (photoFile != null) {
+                    try {
+                        photo = PhotoEncoder.read(photoFile);
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                Long id = rowId;
+                if (rowId == null) {
+                    long newId = db.createClient(client, phone, notes, photo);
+                    id = newId > 0 ? newId : null;
+                }
+                else if (!db.updateClient(rowId, client, phone, notes, photo)) {
+                    id = null;
+                }
+                // the photo is only in the file until it has been saved
+                if (id != null && photoFile != null) {
+                    PhotoEncoder.delete(photoFile);
+                }
+                return id;
             }
 
-            if (mRowId == null) {
-                long id = mDbHelper.createClient(client, phone, notes, photo);
-                if (id > 0) {
-                    mRowId = id;
+            @Override
+            protected void onResult(Long id) {
+                mSaveJob = null;
+                if (id == null) {
+                    // not saved, stay on the form (with the new photo) so it
+                    // can be saved again
+                    Toast toast = Toast.makeText(ClientEdit.this, R.string.error_db_update, Toast.LENGTH_LONG);
+                    toast.show();
+                    return;
                 }
-            } else {
-                mDbHelper.updateClient(mRowId, client, phone, notes, photo);
+                mPhotoFile = null;
+                mRowId = id;
+                setResult(RESULT_OK);
+                finish();
             }
-            return true;
-        }
-        catch (Exception e)
-        {
-            Toast toast = Toast.makeText(this, R.string.error_db_update, Toast.LENGTH_LONG);
-            toast.show();
-        }
-        return false;
+
+            @Override
+            protected void onError(Exception e) {
+                super.onError(e);
+                mSaveJob = null;
+                Toast toast = Toast.makeText(ClientEdit.this, R.string.error_db_update, Toast.LENGTH_LONG);
+                toast.show();
+            }
+        });
     }
 }
@@ -9,6 +9,7 @@ import android.app.DatePickerDialog;
 import android.app.Dialog;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Handler;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.text.format.DateFormat;
@@ -24,7 +25,23 @@ import android.widget.Toast;
 
 public class ClientLoanEdit extends Activity implements TextWatcher  {
 
-    private LoanSharkrDbAdapter mDbHelper;
+    // wait for a pause in typing before working out the total repayment
+    private static final long RECALCULATE_DELAY = 250;
+
+    private DbWorker mDbWorker;
+    private DbWorker.Job<Long> mSaveJob;
+    private DbWorker.Job<BigDecimal> mRepaymentJob;
+    private final Handler mHandler = new Handler();
+    private final Runnable mRecalculate = new Runnable() {
+        public void run() {
+            recalculateTotalRepayment();
+        }
+    };
+    // the inputs of the total repayment shown or being worked out
+    private String mRepaymentDebt;
+    private String mRepaymentWeeklyInterest;
+    private long mRepaymentStart;
+    private long mRepaymentEnd;
 
     private EditText mLoanStartText;
     private EditText mLoanEndText;
@@ -47,8 +64,7 @@ public class ClientLoanEdit extends Activity implements TextWatcher  {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        mDbHelper = new LoanSharkrDbAdapter(this);
-        mDbHelper.open();
+        mDbWorker = new DbWorker(this);
 
         setContentView(R.layout.loan_edit);
         setTitle(R.string.loan_edit);
@@ -138,30 +154,61 @@ public class ClientLoanEdit extends Activity implements TextWatcher  {
         Button saveButton = (Button) findViewById(R.id.save_loan_changes);
         saveButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View view) {
-                if (saveStateToDb() == true) {
-                    setResult(RESULT_OK);
-                    finish();
-                }
+                saveStateToDb();
             }
         });
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mRecalculate);
+        mDbWorker.shutdown();
+    }
+
     private void populateFieldsFromDb() {
         if (mRowId != null) {
-            Cursor loan = mDbHelper.fetchClientLoan(mRowId);
-            startManagingCursor(loan);
-            BigDecimal debt = LoanHelper.ConvertIntegerToCurrency(
-                    loan.getLong(loan.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DEBT)));
-            mDebtText.setText(debt.toPlainString());
-            BigDecimal weekly_interest = LoanHelper.ConvertIntegerToCurrency(
-                    loan.getLong(loan.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_WEEKLYINTEREST)));
-            mWeeklyInterestText.setText(weekly_interest.toPlainString());
-            Long date_ms = loan.getLong(loan.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DATE));
-            mLoanStart = new Date(date_ms);
-            date_ms = loan.getLong(loan.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_MATURITYDATE));
-            mLoanEnd = new Date(date_ms);
-            mLoanStatus = (int)loan.getLong(loan.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_STATUS));
+            final long rowId = mRowId;
+            mDbWorker.query(new DbWorker.Job<Cursor>() {
+                @Override
+                protected Cursor doInBackground(LoanSharkrDbAdapter db) {
+                    return db.fetchClientLoan(rowId);
+                }
+
+                @Override
+                protected void onResult(Cursor loan) {
+                    try {
+                        populateFieldsFromCursor(loan);
+                    }
+                    finally {
+                        loan.close();
+                    }
+                }
+
+                @Override
+                protected void onCancelled(Cursor loan) {
+                    loan.close();
+                }
+            });
+        }
+        else {
+            populateDate();
+            populateLoanStatus();
         }
+    }
+
+    private void populateFieldsFromCursor(Cursor loan) {
+        BigDecimal debt = LoanMath.ConvertIntegerToCurrency(
+                loan.getLong(loan.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DEBT)));
+        mDebtText.setText(debt.toPlainString());
+        BigDecimal weekly_interest = LoanMath.ConvertIntegerToCurrency(
+                loan.getLong(loan.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_WEEKLYINTEREST)));
+        mWeeklyInterestText.setText(weekly_interest.toPlainString());
+        Long date_ms = loan.getLong(loan.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DATE));
+        mLoanStart = new Date(date_ms);
+        date_ms = loan.getLong(loan.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_MATURITYDATE));
+        mLoanEnd = new Date(date_ms);
+        mLoanStatus = (int)loan.getLong(loan.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_STATUS));
         populateDate();
         populateLoanStatus();
     }
@@ -217,18 +264,56 @@ public class ClientLoanEdit extends Activity implements TextWatcher  {
     }
 
     public void afterTextChanged(Editable s) {
-        try {
-        BigDecimal debt = new BigDecimal(mDebtText.getText().toString());
-        BigDecimal weekly_interest = new BigDecimal(mWeeklyInterestText.getText().toString());
-        BigDecimal total_payment = LoanHelper.CalculateTotalRepayment(mLoanStart, mLoanEnd, debt, weekly_interest);
-        mTotalPaymentText.setText("$" + total_payment.toString());
-        }
-        catch (Exception e) {
-            mTotalPaymentText.setText(R.string.na);
+        mHandler.removeCallbacks(mRecalculate);
+        mHandler.postDelayed(mRecalculate, RECALCULATE_DELAY);
+    }
+
+    /**
+     * Work out the total repayment in the background, unless the inputs are
+     * the same as those of the total already shown (or being worked out).
+     * A calculation for earlier inputs that has not finished is cancelled
+     * so that its result is never shown.
+     */
+    private void recalculateTotalRepayment() {
+        final String debtText = mDebtText.getText().toString();
+        final String weeklyInterestText = mWeeklyInterestText.getText().toString();
+        final long loanStart = mLoanStart.getTime();
+        final long loanEnd = mLoanEnd.getTime();
+        if (debtText.equals(mRepaymentDebt) && weeklyInterestText.equals(mRepaymentWeeklyInterest)
+                && loanStart == mRepaymentStart && loanEnd == mRepaymentEnd) {
+            return;
         }
-        finally {
+        mRepaymentDebt = debtText;
+        mRepaymentWeeklyInterest = weeklyInterestText;
+        mRepaymentStart = loanStart;
+        mRepaymentEnd = loanEnd;
 
+        if (mRepaymentJob != null) {
+            mRepaymentJob.cancel();
         }
+        // needs no database, but runs on the same background threads
+        mRepaymentJob = mDbWorker.query(new DbWorker.Job<BigDecimal>() {
+            @Override
+            protected BigDecimal doInBackground(LoanSharkrDbAdapter db) {
+                BigDecimal debt = new BigDecimal(debtText);
+                BigDecimal weekly_interest = new BigDecimal(weeklyInterestText);
+                return LoanHelper.CalculateTotalRepayment(new Date(loanStart), new Date(loanEnd), debt,
+                        weekly_interest);
+            }
+
+            @Override
+            protected void onResult(BigDecimal total_payment) {
+                mRepaymentJob = null;
+                mTotalPaymentText.setText("$" + total_payment.toString());
+            }
+
+            @Override
+            protected void onError(Exception e) {
+                // ie a field that is empty or not a number
+                mRepaymentJob = null;
+                mTotalPaymentText.setText(R.string.na);
+            }
+        });
     }
 
     @Override
@@ -242,39 +327,57 @@ public class ClientLoanEdit extends Activity implements TextWatcher  {
         outState.putSerializable(LoanSharkrDbAdapter.KEY_STATUS, mLoanStatus);
     }
 
-    private boolean saveStateToDb() {
-        try {
-            if (mDebtText.getText().length() == 0) {
-                Toast.makeText(this, R.string.error_loan_edit_form_no_debt, Toast.LENGTH_LONG).show();
-                return false;
-            }
-            if (mWeeklyInterestText.getText().length() == 0) {
-                Toast.makeText(this, R.string.error_loan_edit_form_no_weeklyinterest, Toast.LENGTH_LONG).show();
-                return false;
+    /**
+     * Validate the form and save it in the background, the activity finishes
+     * once the save has completed
+     */
+    private void saveStateToDb() {
+        if (mSaveJob != null) {
+            return;
+        }
+        String debtText = mDebtText.getText().toString();
+        String weeklyInterestText = mWeeklyInterestText.getText().toString();
+        int error = LoanHelper.ValidateLoan(debtText, weeklyInterestText);
+        if (error != 0) {
+            Toast.makeText(this, error, Toast.LENGTH_LONG).show();
+            return;
+        }
+        final BigDecimal debt = new BigDecimal(debtText);
+        final BigDecimal weekly_interest = new BigDecimal(weeklyInterestText);
+        final Long rowId = mRowId;
+        final Long clientId = mClientId;
+        final long loanStart = mLoanStart.getTime();
+        final long loanEnd = mLoanEnd.getTime();
+        final int loanStatus = mLoanStatus;
+
+        mSaveJob = mDbWorker.update(new DbWorker.Job<Long>() {
+            @Override
+            protected Long doInBackground(LoanSharkrDbAdapter db) {
+                if (rowId == null) {
+                    long id = db.createClientLoan(clientId, debt, weekly_interest, loanStart, loanEnd);
+                    return id > 0 ? id : null;
+                }
+                db.updateClientLoan(rowId, debt, weekly_interest, loanEnd, loanStatus);
+                return rowId;
             }
-            BigDecimal debt = new BigDecimal(mDebtText.getText().toString());
-            BigDecimal weekly_interest = new BigDecimal(mWeeklyInterestText.getText().toString());
-            if (mRowId == null) {
-                long id = mDbHelper.createClientLoan(mClientId, debt, weekly_interest,
-                    mLoanStart.getTime(), mLoanEnd.getTime());
-                if (id > 0) {
+
+            @Override
+            protected void onResult(Long id) {
+                mSaveJob = null;
+                if (id != null) {
                     mRowId = id;
                 }
-            } else {
-                mDbHelper.updateClientLoan(mRowId, debt, weekly_interest, mLoanEnd.getTime(), mLoanStatus);
+                setResult(RESULT_OK);
+                finish();
             }
-            return true;
-        }
-        catch (NumberFormatException e)
-        {
-            Toast toast = Toast.makeText(this, R.string.error_loan_edit_form, Toast.LENGTH_LONG);
-            toast.show();
-        }
-        catch (Exception e)
-        {
-            Toast toast = Toast.makeText(this, R.string.error_db_update, Toast.LENGTH_LONG);
-            toast.show();
-        }
-        return false;
+
+            @Override
+            protected void onError(Exception e) {
+                super.onError(e);
+                mSaveJob = null;
+                Toast toast = Toast.makeText(ClientLoanEdit.this, R.string.error_db_update, Toast.LENGTH_LONG);
+                toast.show();
+            }
+        });
     }
 }
@@ -1,9 +1,7 @@
 package com.djpsoft.loansharkr;
 
-import java.math.BigDecimal;
-import java.text.SimpleDateFormat;
+import java.text.DateFormatSymbols;
 import java.util.Calendar;
-import java.util.Date;
 
 import android.app.ListActivity;
 import android.content.Context;
@@ -33,64 +31,159 @@ public class ClientLoans extends ListActivity {
     private static final int EDIT_ID = Menu.FIRST + 1;
     private static final int DELETE_ID = Menu.FIRST + 2;
 
-    private LoanSharkrDbAdapter mDbHelper;
+    private DbWorker mDbWorker;
+    private ClientLoanRowCursorAdapter mLoans;
+    private PageLoader mPageLoader;
     private Long mClientId;
     private boolean mShowClosed;
+    private long mOverdueThreshold;
+
+    private static final Metrics.Timer TIMER_BIND_ROW = Metrics.timer("bind.loanRow");
+
+    /**
+     * The views of a loan row, found once when the row is created. Each
+     * TextView has its own buffer since TextView.setText(char[], ...)
+     * keeps a reference to the array.
+     */
+    private static class ViewHolder {
+        final TextView mDate;
+        final TextView mDebt;
+        final TextView mTotalRepayment;
+        final ImageView mIcon;
+        char[] mDateBuf = new char[16];
+        final char[] mDebtBuf = newMoneyBuffer();
+        final char[] mTotalRepaymentBuf = newMoneyBuffer();
+
+        ViewHolder(View view) {
+            mDate = (TextView) view.findViewById(R.id.date);
+            mDebt = (TextView) view.findViewById(R.id.debt);
+            mTotalRepayment = (TextView) view.findViewById(R.id.total_repayment_text);
+            mIcon = (ImageView) view.findViewById(R.id.icon);
+        }
+
+        private static char[] newMoneyBuffer() {
+            char[] buf = new char[Money.MAX_FORMATTED_LENGTH];
+            buf[0] = '$';
+            return buf;
+        }
+
+        /**
+         * Show the icon, setting its drawable every time since a recycled
+         * row may have shown another one (setting the same one again does
+         * nothing)
+         */
+        void showIcon(int resource) {
+            mIcon.setImageResource(resource);
+            mIcon.setVisibility(View.VISIBLE);
+        }
+    }
 
     public class ClientLoanRowCursorAdapter extends CursorAdapter {
 
         private LayoutInflater mInflater;
+        // only used on the UI thread, so shared by every row. Dates are
+        // shown as "MMM d", written out here since SimpleDateFormat
+        // allocates for every number it formats.
+        private final Calendar mCalendar = Calendar.getInstance();
+        private final String[] mShortMonths = new DateFormatSymbols().getShortMonths();
+        // shown for totals too big for a long number of cents, which are
+        // not stored (see LoanSharkrDbAdapter.totalRepayment)
+        private final String mTotalRepaymentOverflow;
+
+        // column indices of mIndexedCursor
+        private Cursor mIndexedCursor;
+        private int mMaturityDateIndex;
+        private int mDebtIndex;
+        private int mStatusIndex;
+        private int mTotalRepaymentIndex;
 
         public ClientLoanRowCursorAdapter(Context context, Cursor c) {
             super(context, c);
             this.mInflater = getLayoutInflater();
+            char[] buf = ViewHolder.newMoneyBuffer();
+            mTotalRepaymentOverflow = getString(R.string.total_repayment_overflow,
+                    new String(buf, 0, Money.FormatCurrency(Long.MAX_VALUE, buf, 1)));
         }
 
         @Override
         public View newView(Context ctx, Cursor c, ViewGroup viewGroup) {
             View view = mInflater.inflate(R.layout.loan_row, viewGroup, false);
+            view.setTag(new ViewHolder(view));
             return view;
         }
 
         @Override
         public void bindView(View view, Context context, Cursor cursor) {
-            TextView tvDate = (TextView) view.findViewById(R.id.date);
-            TextView tvDebt = (TextView) view.findViewById(R.id.debt);
-            TextView tvTotalRepayment = (TextView) view.findViewById(R.id.total_repayment_text);
-            ImageView ivIcon = (ImageView) view.findViewById(R.id.icon);
-
-            Long start_date = cursor.getLong(cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DATE));
-            Long maturity_date = cursor.getLong(cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_MATURITYDATE));
-            BigDecimal debt = LoanHelper.ConvertIntegerToCurrency(
-                    cursor.getLong(cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DEBT)));
-            BigDecimal weekly_interest = LoanHelper.ConvertIntegerToCurrency(
-                    cursor.getLong(cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_WEEKLYINTEREST)));
-
-            SimpleDateFormat formatter = new SimpleDateFormat("MMM d");
-            String formattedDateString = formatter.format(new Date(maturity_date));
-            tvDate.setText(formattedDateString);
-            tvDebt.setText("$" + debt.toPlainString());
-            BigDecimal totalRepayment = LoanHelper.CalculateTotalRepayment(new Date(start_date),
-                    new Date(maturity_date), debt, weekly_interest);
-            tvTotalRepayment.setText("$" + totalRepayment.toString());
-
-            int status = cursor.getInt(cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_STATUS));
-            switch (status) {
+            long start = Metrics.start();
+            bindRow((ViewHolder) view.getTag(), cursor);
+            TIMER_BIND_ROW.stop(start);
+        }
+
+        private void indexColumns(Cursor cursor) {
+            mMaturityDateIndex = cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_MATURITYDATE);
+            mDebtIndex = cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DEBT);
+            mStatusIndex = cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_STATUS);
+            mTotalRepaymentIndex = cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_TOTALREPAYMENT);
+            mIndexedCursor = cursor;
+        }
+
+        /**
+         * Write a date into a row's date buffer as "MMM d"
+         *
+         * @return the length of the date
+         */
+        private int formatDate(long date, ViewHolder holder) {
+            mCalendar.setTimeInMillis(date);
+            String month = mShortMonths[mCalendar.get(Calendar.MONTH)];
+            int day = mCalendar.get(Calendar.DAY_OF_MONTH);
+            int length = month.length() + (day < 10 ? 2 : 3);
+            if (length > holder.mDateBuf.length) {
+                holder.mDateBuf = new char[length];
+            }
+            char[] buf = holder.mDateBuf;
+            month.getChars(0, month.length(), buf, 0);
+            int i = month.length();
+            buf[i++] = ' ';
+            if (day >= 10) {
+                buf[i++] = (char) ('0' + day / 10);
+            }
+            buf[i++] = (char) ('0' + day % 10);
+            return i;
+        }
+
+        private void bindRow(ViewHolder holder, Cursor cursor) {
+            if (cursor != mIndexedCursor) {
+                indexColumns(cursor);
+            }
+            long maturity_date = cursor.getLong(mMaturityDateIndex);
+            long debt = cursor.getLong(mDebtIndex);
+            // worked out when the loan or its balance was saved
+            long totalRepayment = cursor.getLong(mTotalRepaymentIndex);
+
+            holder.mDate.setText(holder.mDateBuf, 0, formatDate(maturity_date, holder));
+            holder.mDebt.setText(holder.mDebtBuf, 0, Money.FormatPlainCurrency(debt, holder.mDebtBuf, 1));
+            if (totalRepayment != Long.MAX_VALUE) {
+                holder.mTotalRepayment.setText(holder.mTotalRepaymentBuf, 0,
+                        Money.FormatCurrency(totalRepayment, holder.mTotalRepaymentBuf, 1));
+            }
+            else {
+                holder.mTotalRepayment.setText(mTotalRepaymentOverflow);
+            }
+
+            switch (cursor.getInt(mStatusIndex)) {
             case LoanSharkrDbAdapter.LOAN_STATUS_OPEN:
-                Calendar cal = Calendar.getInstance();
-                if (LoanHelper.LoanIsOverdue(cal.getTime(), new Date(maturity_date))) {
-                    ivIcon.setVisibility(View.VISIBLE);
+                if (maturity_date <= mOverdueThreshold) {
+                    holder.showIcon(android.R.drawable.stat_sys_warning);
                 }
                 else {
-                    ivIcon.setVisibility(View.GONE);
+                    holder.mIcon.setVisibility(View.GONE);
                 }
                 break;
             case LoanSharkrDbAdapter.LOAN_STATUS_PAID:
-                ivIcon.setImageResource(R.drawable.tick);
-                ivIcon.setVisibility(View.VISIBLE);
+                holder.showIcon(R.drawable.tick);
                 break;
             case LoanSharkrDbAdapter.LOAN_STATUS_BAD:
-                ivIcon.setVisibility(View.VISIBLE);
+                holder.showIcon(android.R.drawable.stat_sys_warning);
                 break;
             }
         }
@@ -107,12 +200,36 @@ public class ClientLoans extends ListActivity {
         mClientId = extras.getLong(LoanSharkrDbAdapter.KEY_ROWID);
         mShowClosed = extras.getBoolean(SHOW_CLOSED);
 
-        mDbHelper = new LoanSharkrDbAdapter(this);
-        mDbHelper.open();
+        mDbWorker = new DbWorker(this);
+        mLoans = new ClientLoanRowCursorAdapter(this, null);
+        setListAdapter(mLoans);
+        // loans are listed by maturity date and read a page at a time as the
+        // list is scrolled
+        final long clientId = mClientId;
+        final boolean showClosed = mShowClosed;
+        mPageLoader = new PageLoader(mDbWorker, mLoans) {
+            @Override
+            protected Cursor fetchPage(LoanSharkrDbAdapter db, LoanSharkrDbAdapter.PageKey after, int limit) {
+                return db.fetchLoansPage(clientId, showClosed, after, limit);
+            }
+
+            @Override
+            protected LoanSharkrDbAdapter.PageKey lastKey(Cursor page) {
+                return LoanSharkrDbAdapter.PageKey.lastLoan(page);
+            }
+        };
+        getListView().setOnScrollListener(mPageLoader);
         fillData();
         registerForContextMenu(getListView());
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDbWorker.shutdown();
+        mLoans.changeCursor(null);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
@@ -149,22 +266,30 @@ public class ClientLoans extends ListActivity {
                 startActivityForResult(i, ACTIVITY_EDIT);
                 return true;
             case DELETE_ID:
-                mDbHelper.deleteLoan(info.id);
-                fillData();
+                deleteLoan(info.id);
                 return true;
         }
         return super.onContextItemSelected(item);
     }
 
     private void fillData() {
-        // Get all of the rows from the database and create the item list
-        Cursor clientsCursor = mDbHelper.fetchAllLoansFromClient(mClientId, mShowClosed);
-        startManagingCursor(clientsCursor);
-
-        // Now create the ClientLoanRowCursorAdapter and set it to display
-        ClientLoanRowCursorAdapter loans =
-            new ClientLoanRowCursorAdapter(this, clientsCursor);
-        setListAdapter(loans);
+        // worked out once rather than for each row
+        mOverdueThreshold = LoanMath.OverdueThreshold(Calendar.getInstance().getTime());
+        mPageLoader.reload();
+    }
+
+    private void deleteLoan(final long rowId) {
+        mDbWorker.update(new DbWorker.Job<Boolean>() {
+            @Override
+            protected Boolean doInBackground(LoanSharkrDbAdapter db) {
+                return db.deleteLoan(rowId);
+            }
+
+            @Override
+            protected void onResult(Boolean deleted) {
+                fillData();
+            }
+        });
     }
 
     private void createLoan() {
@@ -0,0 +1,363 @@
+package com.djpsoft.loansharkr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+import android.database.SQLException;
+
+/**
+ * Imports clients and loans from a CSV file a record at a time, so the file
+ * is never held in memory. Each loan record belongs to the client record
+ * before it:
+ *
+ * <pre>
+ * client,name,phone,notes
+ * loan,debt,weekly interest,start date,maturity date[,status]
+ * </pre>
+ *
+ * Amounts are in dollars and percent (as typed into the loan edit form),
+ * dates are yyyy-MM-dd or milliseconds since the epoch, and the status is
+ * open (the default), paid or bad. Fields may be quoted, blank lines are
+ * skipped and any further fields on a record are ignored.
+ *
+ * Records are checked with the same rules as the edit forms, a record that
+ * fails is reported to the listener and skipped.
+ */
+public class CsvImporter {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    // records between progress reports
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    // files at least this size (some 20,000 loans) are imported as a large
+    // bulk insert, see LoanSharkrDbAdapter.beginBulkInsert
+    private static final long LARGE_FILE_BYTES = 1 << 20;
+
+    private static final String RECORD_CLIENT = "client";
+    private static final String RECORD_LOAN = "loan";
+
+    /**
+     * Receives progress reports and errors, called on the importing thread
+     */
+    public interface Listener {
+        /**
+         * @param records the number of records read so far
+         * @param clients the number of clients imported so far
+         * @param loans the number of loans imported so far
+         */
+        void onProgress(long records, long clients, long loans);
+
+        /**
+         * @param line the line the record starts on
+         * @param messageId the id of the error message
+         */
+        void onRecordError(long line, int messageId);
+    }
+
+    private final LoanSharkrDbAdapter mDbHelper;
+    private final int mBatchSize;
+    private final Listener mListener;
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    private final ParsePosition mParsePosition = new ParsePosition(0);
+    private volatile boolean mCancelled;
+    private long mRecords;
+    private long mClients;
+    private long mLoans;
+    private long mErrors;
+    // the client that the following loan records belong to, or -1
+    private long mClientId;
+
+    /**
+     * Constructor
+     *
+     * @param db an open database adapter
+     * @param batchSize the number of rows to insert in each transaction
+     * @param listener receives progress and errors
+     */
+    public CsvImporter(LoanSharkrDbAdapter db, int batchSize, Listener listener) {
+        mDbHelper = db;
+        mBatchSize = batchSize;
+        mListener = listener;
+        mDateFormat.setLenient(false);
+    }
+
+    /**
+     * Import a UTF-8 CSV file
+     *
+     * @param file the file
+     * @throws IOException if the file could not be read, the records read
+     * before the error are kept
+     */
+    public void importFile(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            importFrom(in, file.length() >= LARGE_FILE_BYTES);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Import CSV from a reader, which is not closed
+     *
+     * @param in the reader
+     * @throws IOException if the reader fails, the records read before the
+     * error are kept
+     */
+    public void importFrom(Reader in) throws IOException {
+        importFrom(in, false);
+    }
+
+    private void importFrom(Reader in, boolean large) throws IOException {
+        CsvReader reader = new CsvReader(in);
+        ArrayList<String> fields = new ArrayList<String>();
+        LoanSharkrDbAdapter.BulkInserter inserter = mDbHelper.beginBulkInsert(mBatchSize, large);
+        try {
+            mClientId = -1;
+            while (!mCancelled) {
+                long line = reader.getLine();
+                if (!reader.readRecord(fields)) {
+                    break;
+                }
+                if (fields.size() == 1 && fields.get(0).length() == 0) {
+                    continue;
+                }
+                mRecords++;
+
+                String type = fields.get(0);
+                int error;
+                if (RECORD_CLIENT.equalsIgnoreCase(type)) {
+                    error = importClient(inserter, fields);
+                }
+                else if (RECORD_LOAN.equalsIgnoreCase(type)) {
+                    error = mClientId != -1 ? importLoan(inserter, mClientId, fields)
+                            : R.string.error_import_no_client;
+                }
+                else {
+                    error = R.string.error_import_record_type;
+                }
+                if (error != 0) {
+                    mErrors++;
+                    mListener.onRecordError(line, error);
+                }
+
+                if (mRecords % PROGRESS_INTERVAL == 0) {
+                    mListener.onProgress(mRecords, mClients, mLoans);
+                }
+            }
+        }
+        finally {
+            inserter.close();
+        }
+        mListener.onProgress(mRecords, mClients, mLoans);
+    }
+
+    /**
+     * Stop an import that is in progress, the records imported so far are
+     * kept. May be called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public long getClientCount() {
+        return mClients;
+    }
+
+    public long getLoanCount() {
+        return mLoans;
+    }
+
+    public long getErrorCount() {
+        return mErrors;
+    }
+
+    private int importClient(LoanSharkrDbAdapter.BulkInserter inserter, ArrayList<String> fields) {
+        mClientId = -1;
+        if (fields.size() < 4) {
+            return R.string.error_import_field_count;
+        }
+        String client = fields.get(1);
+        int error = LoanHelper.ValidateClient(client);
+        if (error != 0) {
+            return error;
+        }
+        try {
+            mClientId = inserter.insertClient(client, fields.get(2), fields.get(3));
+        }
+        catch (SQLException e) {
+            return R.string.error_db_update;
+        }
+        mClients++;
+        return 0;
+    }
+
+    private int importLoan(LoanSharkrDbAdapter.BulkInserter inserter, long clientId, ArrayList<String> fields) {
+        if (fields.size() < 5) {
+            return R.string.error_import_field_count;
+        }
+        String debt = fields.get(1);
+        String weeklyInterest = fields.get(2);
+        int error = LoanHelper.ValidateLoan(debt, weeklyInterest);
+        if (error != 0) {
+            return error;
+        }
+        long date = parseDate(fields.get(3));
+        long maturityDate = parseDate(fields.get(4));
+        if (date == Long.MIN_VALUE || maturityDate == Long.MIN_VALUE) {
+            return R.string.error_import_date;
+        }
+        int status = fields.size() > 5 ? parseStatus(fields.get(5)) : LoanSharkrDbAdapter.LOAN_STATUS_OPEN;
+        if (status < 0) {
+            return R.string.error_import_status;
+        }
+        try {
+            inserter.insertLoan(clientId, LoanMath.ConvertCurrencyToInteger(new BigDecimal(debt)),
+                    LoanMath.ConvertCurrencyToInteger(new BigDecimal(weeklyInterest)),
+                    date, maturityDate, status);
+        }
+        catch (SQLException e) {
+            return R.string.error_db_update;
+        }
+        mLoans++;
+        return 0;
+    }
+
+    /**
+     * @return the date in ms or Long.MIN_VALUE if it is not valid
+     */
+    private long parseDate(String text) {
+        if (text.length() == 0) {
+            return Long.MIN_VALUE;
+        }
+        boolean digits = true;
+        for (int i = 0; i < text.length() && digits; i++) {
+            digits = Character.isDigit(text.charAt(i));
+        }
+        if (digits) {
+            try {
+                return Long.parseLong(text);
+            }
+            catch (NumberFormatException e) {
+                return Long.MIN_VALUE;
+            }
+        }
+        mParsePosition.setIndex(0);
+        mParsePosition.setErrorIndex(-1);
+        Date date = mDateFormat.parse(text, mParsePosition);
+        if (date == null || mParsePosition.getIndex() != text.length()) {
+            return Long.MIN_VALUE;
+        }
+        return date.getTime();
+    }
+
+    /**
+     * @return the loan status or -1 if it is not valid
+     */
+    private static int parseStatus(String text) {
+        if (text.length() == 0 || text.equalsIgnoreCase("open")) {
+            return LoanSharkrDbAdapter.LOAN_STATUS_OPEN;
+        }
+        if (text.equalsIgnoreCase("paid")) {
+            return LoanSharkrDbAdapter.LOAN_STATUS_PAID;
+        }
+        if (text.equalsIgnoreCase("bad")) {
+            return LoanSharkrDbAdapter.LOAN_STATUS_BAD;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads CSV records (RFC 4180, with quoted fields that may contain
+     * commas, doubled quotes and line breaks) through its own buffer.
+     */
+    private static class CsvReader {
+        private final Reader mIn;
+        private final char[] mBuf = new char[16 * 1024];
+        private int mPos;
+        private int mLength;
+        private final StringBuilder mField = new StringBuilder();
+        private long mLine = 1;
+
+        CsvReader(Reader in) {
+            mIn = in;
+        }
+
+        /**
+         * @return the line that the next record starts on
+         */
+        long getLine() {
+            return mLine;
+        }
+
+        private int read() throws IOException {
+            if (mPos == mLength) {
+                mLength = mIn.read(mBuf, 0, mBuf.length);
+                mPos = 0;
+                if (mLength <= 0) {
+                    mLength = 0;
+                    return -1;
+                }
+            }
+            return mBuf[mPos++];
+        }
+
+        /**
+         * Read the next record
+         *
+         * @param fields cleared and filled with the fields of the record
+         * @return false at the end of the input
+         */
+        boolean readRecord(ArrayList<String> fields) throws IOException {
+            fields.clear();
+            int c = read();
+            if (c == -1) {
+                return false;
+            }
+            mField.setLength(0);
+            boolean quoted = false;
+            while (c != -1) {
+                if (quoted) {
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            quoted = false;
+                            continue;
+                        }
+                    }
+                    else if (c == '\n') {
+                        mLine++;
+                    }
+                    mField.append((char) c);
+                }
+                else if (c == '\n') {
+                    mLine++;
+                    break;
+                }
+                else if (c == ',') {
+                    fields.add(mField.toString());
+                    mField.setLength(0);
+                }
+                else if (c == '"' && mField.length() == 0) {
+                    quoted = true;
+                }
+                else if (c != '\r') {
+                    mField.append((char) c);
+                }
+                c = read();
+            }
+            fields.add(mField.toString());
+            return true;
+        }
+    }
+}
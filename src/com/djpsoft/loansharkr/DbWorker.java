@@ -0,0 +1,198 @@
+package com.djpsoft.loansharkr;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs database work off the UI thread and delivers the results back to it.
+ * Each activity creates its own worker and shuts it down in onDestroy, the
+ * work itself runs on a small thread pool shared by all workers.
+ *
+ * Queries that have not started when the worker is shut down are dropped,
+ * updates always run to completion so that no edits are lost, and no
+ * results are delivered after shutdown.
+ *
+ * Must only be called from the UI thread.
+ */
+public class DbWorker {
+
+    private static final String TAG = "DbWorker";
+    private static final int THREAD_COUNT = 2;
+
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(THREAD_COUNT,
+            new ThreadFactory() {
+                private int mCount;
+
+                public synchronized Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG + " #" + ++mCount);
+                }
+            });
+
+    /**
+     * A unit of database work, doInBackground runs on a worker thread and
+     * the other callbacks on the UI thread.
+     */
+    public static abstract class Job<T> {
+        private volatile boolean mCancelled;
+
+        /**
+         * @param db an open database adapter
+         * @return the result passed to onResult
+         */
+        protected abstract T doInBackground(LoanSharkrDbAdapter db);
+
+        /**
+         * Called with the result of doInBackground
+         *
+         * @param result the result
+         */
+        protected void onResult(T result) {
+        }
+
+        /**
+         * Called if doInBackground threw an exception
+         *
+         * @param e the exception
+         */
+        protected void onError(Exception e) {
+            Log.e(TAG, "Database job failed", e);
+        }
+
+        /**
+         * Called instead of onResult if the job was cancelled after it had
+         * produced a result, so that the result can be released (ie a Cursor
+         * closed)
+         *
+         * @param result the result
+         */
+        protected void onCancelled(T result) {
+        }
+
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private final LoanSharkrDbAdapter mDbHelper;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Set<Job<?>> mJobs = new HashSet<Job<?>>();
+    private int mRunning;
+    private boolean mShutdown;
+
+    /**
+     * Constructor - the worker holds its own reference to the database which
+     * is opened by the first job (so any upgrade runs off the UI thread) and
+     * released once shut down and any running jobs have finished
+     *
+     * @param ctx the Context within which to work
+     */
+    public DbWorker(Context ctx) {
+        mDbHelper = new LoanSharkrDbAdapter(ctx);
+    }
+
+    /**
+     * Run a read only job, it is skipped if the worker is shut down before
+     * it starts.
+     *
+     * @param job the job
+     * @return the job (so it can be cancelled)
+     */
+    public <T> Job<T> query(Job<T> job) {
+        return submit(job, false);
+    }
+
+    /**
+     * Run a job that modifies the database, it always runs even if the
+     * worker is shut down before it starts.
+     *
+     * @param job the job
+     * @return the job (so it can be cancelled)
+     */
+    public <T> Job<T> update(Job<T> job) {
+        return submit(job, true);
+    }
+
+    /**
+     * Cancel all jobs and release the database once running jobs are done.
+     */
+    public void shutdown() {
+        if (mShutdown) {
+            return;
+        }
+        mShutdown = true;
+        for (Job<?> job : mJobs) {
+            job.cancel();
+        }
+        mJobs.clear();
+        releaseIfIdle();
+    }
+
+    private <T> Job<T> submit(final Job<T> job, final boolean mustRun) {
+        if (mShutdown) {
+            throw new IllegalStateException("DbWorker has been shut down");
+        }
+        mJobs.add(job);
+        mRunning++;
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                T result = null;
+                Exception error = null;
+                if (mustRun || !job.isCancelled()) {
+                    try {
+                        result = job.doInBackground(mDbHelper.open());
+                    }
+                    catch (Exception e) {
+                        error = e;
+                    }
+                }
+                deliver(job, result, error);
+            }
+        });
+        return job;
+    }
+
+    private <T> void deliver(final Job<T> job, final T result, final Exception error) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                mRunning--;
+                mJobs.remove(job);
+                if (job.isCancelled()) {
+                    if (result != null) {
+                        job.onCancelled(result);
+                    }
+                }
+                else if (error != null) {
+                    job.onError(error);
+                }
+                else {
+                    job.onResult(result);
+                }
+                releaseIfIdle();
+            }
+        });
+    }
+
+    private void releaseIfIdle() {
+        if (mShutdown && mRunning == 0) {
+            mDbHelper.close();
+        }
+    }
+}
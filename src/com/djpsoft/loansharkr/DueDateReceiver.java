@@ -0,0 +1,17 @@
+package com.djpsoft.loansharkr;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Schedules DueDateService again after the device boots, since alarms are
+ * cleared by a reboot
+ */
+public class DueDateReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        DueDateService.schedule(context);
+    }
+}
@@ -0,0 +1,92 @@
+package com.djpsoft.loansharkr;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+
+/**
+ * Finds the loans that are overdue or due soon and posts a single
+ * notification summarising them. The loans found are saved (see
+ * LoanSharkrDbAdapter.refreshDueLoans) so the client list can read them
+ * rather than checking each row as it is drawn.
+ *
+ * Once scheduled it runs twice a day, inexactly so that the system can
+ * batch it with other alarms.
+ */
+public class DueDateService extends IntentService {
+
+    private static final String TAG = "DueDateService";
+    private static final int NOTIFICATION_ID = 1;
+
+    // open loans maturing within this many days are due soon
+    private static final int DUE_SOON_DAYS = 3;
+
+    public DueDateService() {
+        super(TAG);
+    }
+
+    /**
+     * Schedule the service to run now and then twice a day, replacing any
+     * earlier schedule. Alarms do not survive a reboot, see DueDateReceiver.
+     *
+     * @param context the Context within which to work
+     */
+    public static void schedule(Context context) {
+        AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent operation = PendingIntent.getService(context, 0,
+                new Intent(context, DueDateService.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        alarms.setInexactRepeating(AlarmManager.RTC, System.currentTimeMillis(),
+                AlarmManager.INTERVAL_HALF_DAY, operation);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Date currentDate = Calendar.getInstance().getTime();
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(currentDate);
+        cal.add(Calendar.DATE, DUE_SOON_DAYS);
+
+        int overdue;
+        int dueSoon;
+        LoanSharkrDbAdapter db = new LoanSharkrDbAdapter(this).open();
+        try {
+            db.refreshDueLoans(LoanMath.OverdueThreshold(currentDate), cal.getTimeInMillis());
+            Cursor counts = db.fetchDueLoanCounts();
+            try {
+                overdue = counts.getInt(counts.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_OVERDUECOUNT));
+                dueSoon = counts.getInt(counts.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DUESOONCOUNT));
+            }
+            finally {
+                counts.close();
+            }
+        }
+        finally {
+            db.close();
+        }
+        notifyDueLoans(overdue, dueSoon);
+    }
+
+    private void notifyDueLoans(int overdue, int dueSoon) {
+        NotificationManager notifications = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        if (overdue == 0 && dueSoon == 0) {
+            notifications.cancel(NOTIFICATION_ID);
+            return;
+        }
+        String title = getString(R.string.due_notification_title);
+        String text = getString(R.string.due_notification_text, overdue, dueSoon, DUE_SOON_DAYS);
+        Notification notification = new Notification(R.drawable.icon, title, System.currentTimeMillis());
+        notification.flags |= Notification.FLAG_AUTO_CANCEL;
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, LoanSharkr.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        notification.setLatestEventInfo(this, title, text, contentIntent);
+        notifications.notify(NOTIFICATION_ID, notification);
+    }
+}
@@ -0,0 +1,328 @@
+package com.djpsoft.loansharkr;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+import android.database.Cursor;
+
+/**
+ * Exports every client and loan as CSV or line delimited JSON, reading the
+ * ledger forwards a row at a time so the memory used does not grow with
+ * the size of the book.
+ *
+ * The CSV has the records read by CsvImporter with further fields appended,
+ * so an export can be imported again (without its payments):
+ *
+ * <pre>
+ * client,name,phone,notes,client id
+ * loan,debt,weekly interest,start date,maturity date,status,loan id,balance,balance date,total repayment
+ * </pre>
+ *
+ * JSON has one object per line with a "type" of client or loan and the
+ * same fields named as the database columns.
+ *
+ * The total repayment is the amount due at maturity, calculated with
+ * LoanHelper.CalculateTotalRepayment from the loan's latest balance (which
+ * is the debt until a payment is recorded), see LoanHelper.CalculateBalance.
+ */
+public class LedgerExporter {
+
+    public static final int FORMAT_CSV = 0;
+    public static final int FORMAT_JSON = 1;
+
+    public static final String KEY_TYPE = "type";
+    public static final String KEY_TOTALREPAYMENT = "total_repayment";
+
+    // rows between progress reports
+    private static final int PROGRESS_INTERVAL = 1000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final String RECORD_CLIENT = "client";
+    private static final String RECORD_LOAN = "loan";
+    private static final String[] STATUS_NAMES = {"open", "paid", "bad"};
+
+    /**
+     * Receives progress reports, called on the exporting thread
+     */
+    public interface Listener {
+        /**
+         * @param clients the number of clients written so far
+         * @param loans the number of loans written so far
+         */
+        void onProgress(long clients, long loans);
+    }
+
+    private final LoanSharkrDbAdapter mDbHelper;
+    private final int mFormat;
+    private final boolean mCompress;
+    private final Listener mListener;
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    // reused for every loan
+    private final Date mBalanceDate = new Date();
+    private final Date mMaturityDate = new Date();
+    private final Date mFormatDate = new Date();
+    private volatile boolean mCancelled;
+    private long mClients;
+    private long mLoans;
+
+    /**
+     * Constructor
+     *
+     * @param db an open database adapter
+     * @param format FORMAT_CSV or FORMAT_JSON
+     * @param compress gzip the output of exportFile
+     * @param listener receives progress
+     */
+    public LedgerExporter(LoanSharkrDbAdapter db, int format, boolean compress, Listener listener) {
+        mDbHelper = db;
+        mFormat = format;
+        mCompress = compress;
+        mListener = listener;
+    }
+
+    /**
+     * Export to a UTF-8 file, gzipped if compression was requested
+     *
+     * @param file the file, which is overwritten
+     * @throws IOException if the file could not be written
+     */
+    public void exportFile(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            if (mCompress) {
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+            }
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+            exportTo(writer);
+            // also finishes the gzip stream
+            writer.close();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Export to a writer, which is flushed but not closed. Callers should
+     * pass a buffered writer.
+     *
+     * @param out the writer
+     * @throws IOException if the writer fails
+     */
+    public void exportTo(Writer out) throws IOException {
+        Cursor c = mDbHelper.fetchLedger();
+        try {
+            int clientIdColumn = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_CLIENTID);
+            int clientColumn = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_CLIENT);
+            int phoneColumn = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHONE);
+            int notesColumn = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_NOTES);
+            int loanIdColumn = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_LOANID);
+            int debtColumn = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DEBT);
+            int interestColumn = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_WEEKLYINTEREST);
+            int dateColumn = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DATE);
+            int maturityColumn = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_MATURITYDATE);
+            int statusColumn = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_STATUS);
+            int balanceColumn = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_BALANCE);
+            int balanceDateColumn = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_BALANCEDATE);
+
+            long lastClientId = -1;
+            // a row can count both a client and a loan, so the count may
+            // step over a multiple of the interval
+            long nextProgress = mClients + mLoans + PROGRESS_INTERVAL;
+            while (!mCancelled && c.moveToNext()) {
+                long clientId = c.getLong(clientIdColumn);
+                if (clientId != lastClientId) {
+                    lastClientId = clientId;
+                    writeClient(out, clientId, c.getString(clientColumn), c.getString(phoneColumn),
+                            c.getString(notesColumn));
+                    mClients++;
+                }
+                if (!c.isNull(loanIdColumn)) {
+                    writeLoan(out, c.getLong(loanIdColumn), clientId, c.getLong(debtColumn),
+                            c.getLong(interestColumn), c.getLong(dateColumn), c.getLong(maturityColumn),
+                            c.getInt(statusColumn), c.getLong(balanceColumn), c.getLong(balanceDateColumn));
+                    mLoans++;
+                }
+                if (mClients + mLoans >= nextProgress) {
+                    mListener.onProgress(mClients, mLoans);
+                    nextProgress = mClients + mLoans + PROGRESS_INTERVAL;
+                }
+            }
+        }
+        finally {
+            c.close();
+        }
+        out.flush();
+        mListener.onProgress(mClients, mLoans);
+    }
+
+    /**
+     * Stop an export that is in progress, leaving the output incomplete. May
+     * be called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public long getClientCount() {
+        return mClients;
+    }
+
+    public long getLoanCount() {
+        return mLoans;
+    }
+
+    private void writeClient(Writer out, long clientId, String client, String phone, String notes)
+            throws IOException {
+        if (mFormat == FORMAT_CSV) {
+            out.write(RECORD_CLIENT);
+            writeCsvField(out, client);
+            writeCsvField(out, phone);
+            writeCsvField(out, notes);
+            out.write(',');
+            out.write(Long.toString(clientId));
+        }
+        else {
+            writeJsonField(out, '{', KEY_TYPE, RECORD_CLIENT);
+            writeJsonField(out, ',', LoanSharkrDbAdapter.KEY_ROWID, clientId);
+            writeJsonField(out, ',', LoanSharkrDbAdapter.KEY_CLIENT, client);
+            writeJsonField(out, ',', LoanSharkrDbAdapter.KEY_PHONE, phone);
+            writeJsonField(out, ',', LoanSharkrDbAdapter.KEY_NOTES, notes);
+            out.write('}');
+        }
+        out.write('\n');
+    }
+
+    private void writeLoan(Writer out, long loanId, long clientId, long debt, long weeklyInterest,
+            long date, long maturityDate, int status, long balance, long balanceDate) throws IOException {
+        BigDecimal rate = LoanMath.ConvertIntegerToCurrency(weeklyInterest);
+        BigDecimal balanceAmount = LoanMath.ConvertIntegerToCurrency(balance);
+        mBalanceDate.setTime(balanceDate);
+        mMaturityDate.setTime(maturityDate);
+        BigDecimal totalRepayment = LoanHelper.CalculateBalance(mBalanceDate, mMaturityDate,
+                balanceAmount, rate);
+        String statusName = status >= 0 && status < STATUS_NAMES.length ? STATUS_NAMES[status]
+                : Integer.toString(status);
+
+        if (mFormat == FORMAT_CSV) {
+            out.write(RECORD_LOAN);
+            writeCsvField(out, LoanMath.ConvertIntegerToCurrency(debt).toPlainString());
+            writeCsvField(out, rate.toPlainString());
+            writeCsvField(out, formatDate(date));
+            writeCsvField(out, formatDate(maturityDate));
+            writeCsvField(out, statusName);
+            writeCsvField(out, Long.toString(loanId));
+            writeCsvField(out, balanceAmount.toPlainString());
+            writeCsvField(out, formatDate(balanceDate));
+            writeCsvField(out, totalRepayment.toPlainString());
+        }
+        else {
+            writeJsonField(out, '{', KEY_TYPE, RECORD_LOAN);
+            writeJsonField(out, ',', LoanSharkrDbAdapter.KEY_ROWID, loanId);
+            writeJsonField(out, ',', LoanSharkrDbAdapter.KEY_CLIENTID, clientId);
+            writeJsonField(out, ',', LoanSharkrDbAdapter.KEY_DEBT, LoanMath.ConvertIntegerToCurrency(debt));
+            writeJsonField(out, ',', LoanSharkrDbAdapter.KEY_WEEKLYINTEREST, rate);
+            writeJsonField(out, ',', LoanSharkrDbAdapter.KEY_DATE, formatDate(date));
+            writeJsonField(out, ',', LoanSharkrDbAdapter.KEY_MATURITYDATE, formatDate(maturityDate));
+            writeJsonField(out, ',', LoanSharkrDbAdapter.KEY_STATUS, statusName);
+            writeJsonField(out, ',', LoanSharkrDbAdapter.KEY_BALANCE, balanceAmount);
+            writeJsonField(out, ',', LoanSharkrDbAdapter.KEY_BALANCEDATE, formatDate(balanceDate));
+            writeJsonField(out, ',', KEY_TOTALREPAYMENT, totalRepayment);
+            out.write('}');
+        }
+        out.write('\n');
+    }
+
+    private String formatDate(long date) {
+        mFormatDate.setTime(date);
+        return mDateFormat.format(mFormatDate);
+    }
+
+    /**
+     * Write a comma and then a field, quoted if it needs to be
+     */
+    private static void writeCsvField(Writer out, String value) throws IOException {
+        out.write(',');
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char ch = value.charAt(i);
+            quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '"') {
+                out.write('"');
+            }
+            out.write(ch);
+        }
+        out.write('"');
+    }
+
+    private static void writeJsonName(Writer out, char separator, String name) throws IOException {
+        out.write(separator);
+        out.write('"');
+        out.write(name);
+        out.write("\":");
+    }
+
+    private static void writeJsonField(Writer out, char separator, String name, long value) throws IOException {
+        writeJsonName(out, separator, name);
+        out.write(Long.toString(value));
+    }
+
+    private static void writeJsonField(Writer out, char separator, String name, BigDecimal value)
+            throws IOException {
+        writeJsonName(out, separator, name);
+        out.write(value.toPlainString());
+    }
+
+    private static void writeJsonField(Writer out, char separator, String name, String value)
+            throws IOException {
+        writeJsonName(out, separator, name);
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+            case '"':
+                out.write("\\\"");
+                break;
+            case '\\':
+                out.write("\\\\");
+                break;
+            case '\n':
+                out.write("\\n");
+                break;
+            case '\r':
+                out.write("\\r");
+                break;
+            case '\t':
+                out.write("\\t");
+                break;
+            default:
+                if (ch < 0x20) {
+                    out.write("\\u00");
+                    out.write(Character.forDigit(ch >> 4, 16));
+                    out.write(Character.forDigit(ch & 0xf, 16));
+                }
+                else {
+                    out.write(ch);
+                }
+            }
+        }
+        out.write('"');
+    }
+}
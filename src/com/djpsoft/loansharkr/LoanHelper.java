@@ -14,8 +14,11 @@ public final class LoanHelper {
         throw new AssertionError();
     }
 
+    private static final Metrics.Timer TIMER_TOTAL_REPAYMENT = Metrics.timer("calc.totalRepayment");
+
     /**
-     * Calculate the interest (compounding weekly) on a loan.
+     * Calculate the interest (compounding weekly) on a loan, see
+     * LoanMath.CalculateTotalRepayment
      *
      * @param startDate the starting date of the loan
      * @param endDate the end date of the loan
@@ -24,41 +27,105 @@ public final class LoanHelper {
      * @return the total repayment amount
      */
     public static BigDecimal CalculateTotalRepayment(Date startDate, Date endDate, BigDecimal debt, BigDecimal weekly_interest) {
-        BigDecimal diff_ms = new BigDecimal(endDate.getTime() - startDate.getTime());
-        if (diff_ms.compareTo(new BigDecimal(0)) == 1) {
-            BigDecimal week_ms = new BigDecimal(1000 * 60 * 60 * 24 * 7);
-            BigDecimal weeks = diff_ms.divide(week_ms, 10, RoundingMode.HALF_EVEN);
-            BigDecimal interest_multiplier = weekly_interest.divide(new BigDecimal(100));
-            while (weeks.compareTo(new BigDecimal(0)) == 1) {
-                BigDecimal earnedInterest = debt.multiply(interest_multiplier);
-                // if this is a partial week then modify the earned interest to reflect that
-                if (weeks.compareTo(new BigDecimal(1)) == -1) {
-                    earnedInterest = earnedInterest.multiply(weeks);
-                }
-                debt = debt.add(earnedInterest);
-                weeks = weeks.subtract(new BigDecimal(1));
-            }
+        long start = Metrics.start();
+        try {
+            return LoanMath.CalculateTotalRepayment(startDate, endDate, debt, weekly_interest);
+        }
+        finally {
+            TIMER_TOTAL_REPAYMENT.stop(start);
+        }
+    }
+
+    /**
+     * Calculate the balance of a loan at a date from an earlier balance.
+     * Interest accrues (compounding weekly, see CalculateTotalRepayment) on
+     * the balance left after each payment, so a loan with payments is
+     * brought up to date one payment at a time. A balance that has been
+     * paid off (or overpaid) does not accrue interest.
+     *
+     * @param balanceDate the date of the known balance
+     * @param date the date to calculate the balance at
+     * @param balance the known balance
+     * @param weekly_interest the weekly interest rate of the loan
+     * @return the balance at date
+     */
+    public static BigDecimal CalculateBalance(Date balanceDate, Date date, BigDecimal balance, BigDecimal weekly_interest) {
+        if (balance.signum() <= 0) {
+            return balance.setScale(2, RoundingMode.HALF_EVEN);
+        }
+        return CalculateTotalRepayment(balanceDate, date, balance, weekly_interest);
+    }
+
+    /**
+     * Calculate the balance of a loan after a payment
+     *
+     * @param balanceDate the date of the known balance
+     * @param balance the known balance
+     * @param paymentDate the date of the payment (on or after balanceDate)
+     * @param payment the amount paid
+     * @param weekly_interest the weekly interest rate of the loan
+     * @return the balance left at paymentDate
+     */
+    public static BigDecimal ApplyPayment(Date balanceDate, BigDecimal balance, Date paymentDate,
+            BigDecimal payment, BigDecimal weekly_interest) {
+        return CalculateBalance(balanceDate, paymentDate, balance, weekly_interest).subtract(payment);
+    }
+
+    /**
+     * Check the client fields of the client edit form (or an imported
+     * client)
+     *
+     * @param client the name of the client
+     * @return 0 if valid, otherwise the id of the error message
+     */
+    public static int ValidateClient(String client) {
+        if (client.length() == 0) {
+            return R.string.error_client_edit_form_no_client;
         }
-        return debt.setScale(2, RoundingMode.HALF_EVEN);
+        return 0;
+    }
+
+    /**
+     * Check the amounts of the loan edit form (or an imported loan)
+     *
+     * @param debt the size of the loan
+     * @param weekly_interest the weekly interest rate of the loan
+     * @return 0 if valid, otherwise the id of the error message
+     */
+    public static int ValidateLoan(String debt, String weekly_interest) {
+        if (debt.length() == 0) {
+            return R.string.error_loan_edit_form_no_debt;
+        }
+        if (weekly_interest.length() == 0) {
+            return R.string.error_loan_edit_form_no_weeklyinterest;
+        }
+        try {
+            new BigDecimal(debt);
+            new BigDecimal(weekly_interest);
+        }
+        catch (NumberFormatException e) {
+            return R.string.error_loan_edit_form;
+        }
+        return 0;
     }
 
     /**
      * Figure out if a client has an overdue loan
      *
+     * @param db an open database adapter
      * @param clientId the client id
      * @return true if the client has an overdue loan
      */
     public static boolean ClientHasOverdueLoan(LoanSharkrDbAdapter db, long clientId) {
         final Calendar cal = Calendar.getInstance();
         Date currentDate = cal.getTime();
-        db.open();
         Cursor c = db.fetchAllLoansFromClient(clientId, false);
         try {
             if (c.moveToFirst())
             {
                 do {
                     Date maturityDate = new Date(c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_MATURITYDATE)));
-                    if (LoanIsOverdue(currentDate, maturityDate)) {
+                    if (LoanMath.LoanIsOverdue(currentDate, maturityDate)) {
                         return true;
                     }
                 } while (c.moveToNext());
@@ -70,41 +137,5 @@ public final class LoanHelper {
         return false;
     }
 
-    /**
-     * Figure out if a loan is overdue (day after due date)
-     *
-     * @param currentDate the current date
-     * @param maturityDate the due date of the load
-     * @return true if the client has an overdue loan
-     */
-    public static boolean LoanIsOverdue(Date currentDate, Date maturityDate) {
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(maturityDate);
-        cal.add(Calendar.DATE, 1);
-        Date maturityDatePlusOneDay = cal.getTime();
-        return currentDate.after(maturityDatePlusOneDay) || currentDate.equals(maturityDatePlusOneDay);
-    }
-
-    /**
-     * Convert currency to an integer (ie 5.34 -> 534, 10.10 -> 1010)
-     *
-     * @param value the currency value
-     * @return the integer representation
-     */
-    public static long ConvertCurrencyToInteger(BigDecimal value) {
-        return value.longValue() * 100 +
-            value.subtract(new BigDecimal(value.longValue())).multiply(new BigDecimal(100)).longValue();
-    }
-
-    /**
-     * Convert an integer to currency (ie 534 -> 5.34, 1010 -> 10.10)
-     *
-     * @param value the currency value
-     * @return the integer representation
-     */
-    public static BigDecimal ConvertIntegerToCurrency(long value) {
-        BigDecimal temp = new BigDecimal(value);
-        return temp.divide(new BigDecimal(100));
-    }
 
 }
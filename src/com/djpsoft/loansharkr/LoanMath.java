@@ -0,0 +1,175 @@
+package com.djpsoft.loansharkr;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * The loan arithmetic (interest, currency conversion and due dates). It
+ * uses no Android classes so that it can be tested and benchmarked on a
+ * plain JVM (see jvm/), the app calls it through LoanHelper and Money.
+ */
+public final class LoanMath {
+
+    // Suppress default constructor for noninstantiability
+    private LoanMath() {
+        throw new AssertionError();
+    }
+
+    private static final BigDecimal WEEK_MS = new BigDecimal(1000 * 60 * 60 * 24 * 7);
+    private static final BigDecimal HUNDRED = new BigDecimal(100);
+    private static final BigDecimal HALF = new BigDecimal("0.5");
+
+    // working precision for the fast path, the exact path is only taken
+    // when the fast result lands too close to a half cent to round safely
+    private static final MathContext FAST_MC = new MathContext(48, RoundingMode.HALF_EVEN);
+    private static final int FAST_GUARD_DIGITS = 24;
+    // totals with more integer digits than this are far too big to be
+    // stored (see Money.OVERFLOW), so they are not worked out to the cent,
+    // which keeps the precision (and the cost) bounded for extreme terms
+    private static final int MAX_CENT_DIGITS = 40;
+    private static final MathContext MAX_MC =
+        new MathContext(MAX_CENT_DIGITS + FAST_GUARD_DIGITS, RoundingMode.HALF_EVEN);
+
+    // the largest exponent BigDecimal.pow accepts, 19 million years of weeks
+    private static final long MAX_WHOLE_WEEKS = 999999999;
+
+    // bound on the error of Compound in ulps of its result: pow() is within
+    // two ulps of its exact value and each of the two multiplies within half
+    // an ulp, 3 ulps of relative error in all, and an ulp of an intermediate
+    // can be up to ten ulps of the result (an ulp is between 10^-p and
+    // 10^(1-p) of its value), so the result is within 30 ulps
+    private static final BigDecimal FAST_ERROR_ULPS = new BigDecimal(32);
+
+    /**
+     * Calculate the interest (compounding weekly) on a loan.
+     *
+     * Whole weeks are compounded in a single exponentiation and the trailing
+     * partial week earns simple interest on the compounded debt, so the
+     * cost grows only with the logarithm of the term and the digits of the
+     * total, which are capped at MAX_MC's (the rare exact fallback, for a
+     * total within its error bound of a half cent, still grows with the
+     * term).
+     *
+     * The result is rounded to the cent exactly as if each week had been
+     * compounded in turn, unless it has more than MAX_CENT_DIGITS integer
+     * digits, when it is only accurate to MAX_MC's precision (and has no
+     * decimal places once that precision is all integer digits). Terms of
+     * more than MAX_WHOLE_WEEKS are compounded for MAX_WHOLE_WEEKS.
+     *
+     * @param startDate the starting date of the loan
+     * @param endDate the end date of the loan
+     * @param debt the size of the loan
+     * @param weekly_interest the weekly interest rate of the loan
+     * @return the total repayment amount
+     */
+    public static BigDecimal CalculateTotalRepayment(Date startDate, Date endDate, BigDecimal debt, BigDecimal weekly_interest) {
+        long diff_ms = endDate.getTime() - startDate.getTime();
+        if (diff_ms > 0) {
+            BigDecimal weeks = new BigDecimal(diff_ms).divide(WEEK_MS, 10, RoundingMode.HALF_EVEN);
+            // less than 2^63 / WEEK_MS, so exact as a long
+            long weeksPassed = weeks.longValue();
+            BigDecimal partialWeek = weeks.subtract(new BigDecimal(weeksPassed));
+            int wholeWeeks = (int) Math.min(weeksPassed, MAX_WHOLE_WEEKS);
+            BigDecimal interest_multiplier = weekly_interest.divide(HUNDRED);
+            // without trailing zeros the exact pow's scale only grows with
+            // the rate's significant decimals
+            BigDecimal growth = BigDecimal.ONE.add(interest_multiplier).stripTrailingZeros();
+            BigDecimal partialGrowth = BigDecimal.ONE.add(interest_multiplier.multiply(partialWeek));
+
+            BigDecimal total = Compound(debt, growth, wholeWeeks, partialGrowth, FAST_MC);
+            int integerDigits = total.precision() - total.scale();
+            if (integerDigits > MAX_CENT_DIGITS) {
+                total = Compound(debt, growth, wholeWeeks, partialGrowth, MAX_MC);
+                // padding an astronomical total out to the cent could take millions of digits
+                return total.scale() > 2 ? total.setScale(2, RoundingMode.HALF_EVEN) : total;
+            }
+            if (integerDigits > FAST_MC.getPrecision() - FAST_GUARD_DIGITS) {
+                // a very large total, widen the precision so cents are still resolved
+                MathContext mc = new MathContext(integerDigits + FAST_GUARD_DIGITS, RoundingMode.HALF_EVEN);
+                total = Compound(debt, growth, wholeWeeks, partialGrowth, mc);
+            }
+            if (IsSafeToRound(total)) {
+                return total.setScale(2, RoundingMode.HALF_EVEN);
+            }
+            // too close to a half cent, compound exactly (still only one pow)
+            debt = debt.multiply(growth.pow(wholeWeeks)).multiply(partialGrowth);
+        }
+        return debt.setScale(2, RoundingMode.HALF_EVEN);
+    }
+
+    private static BigDecimal Compound(BigDecimal debt, BigDecimal growth, int wholeWeeks,
+            BigDecimal partialGrowth, MathContext mc) {
+        return debt.multiply(growth.pow(wholeWeeks, mc), mc).multiply(partialGrowth, mc);
+    }
+
+    /**
+     * Figure out if an approximate amount (computed with a MathContext by
+     * Compound) rounds to the same cent as the exact amount would.
+     *
+     * @param value the approximate amount
+     * @return true if rounding value to cents gives the exact answer
+     */
+    static boolean IsSafeToRound(BigDecimal value) {
+        BigDecimal margin = value.ulp().multiply(HUNDRED).multiply(FAST_ERROR_ULPS);
+        if (margin.compareTo(HALF) >= 0) {
+            return false;
+        }
+        BigDecimal cents = value.abs().movePointRight(2);
+        BigDecimal fraction = cents.subtract(cents.setScale(0, RoundingMode.FLOOR));
+        return fraction.subtract(HALF).abs().compareTo(margin) > 0;
+    }
+
+    /**
+     * Figure out the latest maturity date that is overdue, so that overdue
+     * loans can be found with a single comparison (ie in SQL)
+     *
+     * @param currentDate the current date
+     * @return loans with a maturity date on or before this are overdue
+     */
+    public static long OverdueThreshold(Date currentDate) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(currentDate);
+        cal.add(Calendar.DATE, -1);
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * Figure out if a loan is overdue (day after due date)
+     *
+     * @param currentDate the current date
+     * @param maturityDate the due date of the load
+     * @return true if the client has an overdue loan
+     */
+    public static boolean LoanIsOverdue(Date currentDate, Date maturityDate) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(maturityDate);
+        cal.add(Calendar.DATE, 1);
+        Date maturityDatePlusOneDay = cal.getTime();
+        return currentDate.after(maturityDatePlusOneDay) || currentDate.equals(maturityDatePlusOneDay);
+    }
+
+    /**
+     * Convert currency to an integer (ie 5.34 -> 534, 10.10 -> 1010)
+     *
+     * @param value the currency value
+     * @return the integer representation
+     */
+    public static long ConvertCurrencyToInteger(BigDecimal value) {
+        return value.longValue() * 100 +
+            value.subtract(new BigDecimal(value.longValue())).multiply(new BigDecimal(100)).longValue();
+    }
+
+    /**
+     * Convert an integer to currency (ie 534 -> 5.34, 1010 -> 10.10)
+     *
+     * @param value the currency value
+     * @return the integer representation
+     */
+    public static BigDecimal ConvertIntegerToCurrency(long value) {
+        BigDecimal temp = new BigDecimal(value);
+        return temp.divide(new BigDecimal(100));
+    }
+}
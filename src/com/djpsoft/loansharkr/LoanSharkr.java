@@ -16,13 +16,21 @@
 
 package com.djpsoft.loansharkr;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+
 import android.app.ListActivity;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Gravity;
@@ -33,6 +41,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.CursorAdapter;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
@@ -49,13 +58,67 @@ public class LoanSharkr extends ListActivity {
     private static final int CLOSED_LOANS_ID = Menu.FIRST + 2;
     private static final int EDIT_ID = Menu.FIRST + 3;
     private static final int DELETE_ID = Menu.FIRST + 4;
+    private static final int DUMP_METRICS_ID = Menu.FIRST + 5;
+
+    // wait for a pause in typing before searching
+    private static final long SEARCH_DELAY = 250;
+    private static final int SEARCH_LIMIT = 100;
+
+    private static final String TAG = "LoanSharkr";
+    private static final String METRICS_FILE = "metrics.txt";
+    private static final Metrics.Timer TIMER_BIND_ROW = Metrics.timer("bind.clientRow");
 
-    private LoanSharkrDbAdapter mDbHelper;
+    private DbWorker mDbWorker;
+    private ClientRowCursorAdapter mClients;
+    private PageLoader mPageLoader;
+    private long mOverdueThreshold;
+    private String mQuery;
+    private final Handler mHandler = new Handler();
+    private EditText mSearchText;
+    private final Runnable mSearch = new Runnable() {
+        public void run() {
+            // text with no words to search for (ie only punctuation) lists
+            // all clients, a page at a time
+            String query = mSearchText.getText().toString().trim();
+            mQuery = LoanSharkrDbAdapter.isSearchable(query) ? query : null;
+            fillData();
+        }
+    };
+    private PhotoLoader mPhotoLoader;
+
+    /**
+     * The views of a client row, found once when the row is created. Each
+     * TextView has its own buffer since TextView.setText(char[], ...)
+     * keeps a reference to the array.
+     */
+    private static class ViewHolder {
+        final ImageView mPhoto;
+        final TextView mClient;
+        final TextView mPhone;
+        final ImageView mIcon;
+        final CharArrayBuffer mClientBuf = new CharArrayBuffer(32);
+        final CharArrayBuffer mPhoneBuf = new CharArrayBuffer(16);
+
+        ViewHolder(View view) {
+            mPhoto = (ImageView) view.findViewById(R.id.photo);
+            mClient = (TextView) view.findViewById(R.id.client);
+            mPhone = (TextView) view.findViewById(R.id.phone);
+            mIcon = (ImageView) view.findViewById(R.id.icon);
+        }
+    }
 
     public class ClientRowCursorAdapter extends CursorAdapter {
 
         private LayoutInflater mInflater;
 
+        // column indices of mIndexedCursor
+        private Cursor mIndexedCursor;
+        private int mRowIdIndex;
+        private int mPhotoVersionIndex;
+        private int mClientIndex;
+        private int mPhoneIndex;
+        private int mHasOverdueIndex;
+
         public ClientRowCursorAdapter(Context context, Cursor c) {
             super(context, c);
             this.mInflater = getLayoutInflater();
@@ -64,31 +127,44 @@ public class LoanSharkr extends ListActivity {
         @Override
         public View newView(Context ctx, Cursor c, ViewGroup viewGroup) {
             View view = mInflater.inflate(R.layout.client_row, viewGroup, false);
+            view.setTag(new ViewHolder(view));
             return view;
         }
 
         @Override
         public void bindView(View view, Context context, Cursor cursor) {
-            ImageView imageView = (ImageView) view.findViewById(R.id.photo);
-            TextView tvClient = (TextView) view.findViewById(R.id.client);
-            TextView tvPhone = (TextView) view.findViewById(R.id.phone);
-            ImageView ivIcon = (ImageView) view.findViewById(R.id.icon);
-
-            byte[] imgData = cursor.getBlob(cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHOTO));
-            if (imgData != null) {
-                Bitmap photo = BitmapFactory.decodeByteArray(imgData, 0, imgData.length);
-                imageView.setImageBitmap(photo);
+            long start = Metrics.start();
+            bindRow((ViewHolder) view.getTag(), cursor);
+            TIMER_BIND_ROW.stop(start);
+        }
+
+        private void indexColumns(Cursor cursor) {
+            mRowIdIndex = cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_ROWID);
+            mPhotoVersionIndex = cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHOTOVERSION);
+            mClientIndex = cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_CLIENT);
+            mPhoneIndex = cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHONE);
+            mHasOverdueIndex = cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_HASOVERDUE);
+            mIndexedCursor = cursor;
+        }
+
+        private void bindRow(ViewHolder holder, Cursor cursor) {
+            if (cursor != mIndexedCursor) {
+                indexColumns(cursor);
             }
-            tvClient.setText(cursor.getString(cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_CLIENT)));
-            tvPhone.setText(cursor.getString(cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHONE)));
+            // only rows on screen are bound, so photos are fetched lazily here
+            // rather than being carried in the list query
+            mPhotoLoader.loadPhoto(holder.mPhoto, cursor.getLong(mRowIdIndex), cursor.getInt(mPhotoVersionIndex));
+            // copied rather than read as Strings, so binding allocates nothing
+            cursor.copyStringToBuffer(mClientIndex, holder.mClientBuf);
+            holder.mClient.setText(holder.mClientBuf.data, 0, holder.mClientBuf.sizeCopied);
+            cursor.copyStringToBuffer(mPhoneIndex, holder.mPhoneBuf);
+            holder.mPhone.setText(holder.mPhoneBuf.data, 0, holder.mPhoneBuf.sizeCopied);
 
-            long clientId = cursor.getLong(cursor.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_ROWID));
-            if (LoanHelper.ClientHasOverdueLoan(mDbHelper, clientId)) {
-                ivIcon.setVisibility(View.VISIBLE);
-                showLoanAlert();
+            if (cursor.getInt(mHasOverdueIndex) != 0) {
+                holder.mIcon.setVisibility(View.VISIBLE);
             }
             else {
-                ivIcon.setVisibility(View.GONE);
+                holder.mIcon.setVisibility(View.GONE);
             }
         }
     }
@@ -98,10 +174,83 @@ public class LoanSharkr extends ListActivity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.client_list);
-        mDbHelper = new LoanSharkrDbAdapter(this);
-        mDbHelper.open();
+        mDbWorker = new DbWorker(this);
+        mPhotoLoader = new PhotoLoader(this);
+        mClients = new ClientRowCursorAdapter(this, null);
+        setListAdapter(mClients);
+        // clients are listed by name and read a page at a time as the list
+        // is scrolled
+        mPageLoader = new PageLoader(mDbWorker, mClients) {
+            @Override
+            protected Cursor fetchPage(LoanSharkrDbAdapter db, LoanSharkrDbAdapter.PageKey after, int limit) {
+                if (mQuery != null) {
+                    return db.searchClients(mQuery, mOverdueThreshold, SEARCH_LIMIT);
+                }
+                return db.fetchClientsPage(mOverdueThreshold, LoanSharkrDbAdapter.SORT_BY_NAME, after, limit);
+            }
+
+            @Override
+            protected boolean isLastPage(Cursor page, int limit) {
+                // search results are ranked and come as a single page
+                return mQuery != null || super.isLastPage(page, limit);
+            }
+
+            @Override
+            protected LoanSharkrDbAdapter.PageKey lastKey(Cursor page) {
+                return LoanSharkrDbAdapter.PageKey.lastClient(page);
+            }
+        };
+        getListView().setOnScrollListener(mPageLoader);
+
+        mSearchText = (EditText) findViewById(R.id.search);
+        mSearchText.addTextChangedListener(new TextWatcher() {
+            public void afterTextChanged(Editable s) {
+                mHandler.removeCallbacks(mSearch);
+                mHandler.postDelayed(mSearch, SEARCH_DELAY);
+            }
+
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+        });
         fillData();
         registerForContextMenu(getListView());
+
+        DueDateService.schedule(this);
+        checkDueLoans();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mSearch);
+        mDbWorker.shutdown();
+        mPhotoLoader.shutdown();
+        mClients.changeCursor(null);
+    }
+
+    /**
+     * Show the overdue loan alert if any loans are overdue. The count comes
+     * from the maturity index, which the adapter keeps up to date as loans
+     * are written, so it is current without a query (after the index is
+     * first built).
+     */
+    private void checkDueLoans() {
+        mDbWorker.query(new DbWorker.Job<Integer>() {
+            @Override
+            protected Integer doInBackground(LoanSharkrDbAdapter db) {
+                return db.getMaturityIndex().countOverdue(System.currentTimeMillis());
+            }
+
+            @Override
+            protected void onResult(Integer overdue) {
+                if (overdue > 0) {
+                    showLoanAlert();
+                }
+            }
+        });
     }
 
     private boolean loanAlertShown = false;
@@ -123,20 +272,33 @@ public class LoanSharkr extends ListActivity {
 
 
     private void fillData() {
-        // Get all of the rows from the database and create the item list
-        Cursor clientsCursor = mDbHelper.fetchAllClients();
-        startManagingCursor(clientsCursor);
+        // read by the page queries, which are submitted after these are set
+        mOverdueThreshold = LoanMath.OverdueThreshold(Calendar.getInstance().getTime());
+        mPageLoader.reload();
+    }
+
+    private void deleteClient(final long rowId) {
+        mDbWorker.update(new DbWorker.Job<Boolean>() {
+            @Override
+            protected Boolean doInBackground(LoanSharkrDbAdapter db) {
+                return db.deleteClient(rowId);
+            }
 
-        // Now create the ClientRowCursorAdapter and set it to display
-        ClientRowCursorAdapter clients =
-            new ClientRowCursorAdapter(this, clientsCursor);
-        setListAdapter(clients);
+            @Override
+            protected void onResult(Boolean deleted) {
+                fillData();
+            }
+        });
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
         menu.add(0, ADD_ID, 0, R.string.menu_add_client);
+        // metrics are for profiling development builds only
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            menu.add(0, DUMP_METRICS_ID, 0, R.string.menu_dump_metrics);
+        }
         return true;
     }
 
@@ -146,11 +308,33 @@ public class LoanSharkr extends ListActivity {
             case ADD_ID:
                 createClient();
                 return true;
+            case DUMP_METRICS_ID:
+                dumpMetrics();
+                return true;
         }
 
         return super.onMenuItemSelected(featureId, item);
     }
 
+    /**
+     * Write the latency histograms to the log and to a file in the app's
+     * files directory, so that runs can be compared
+     */
+    private void dumpMetrics() {
+        final File file = new File(getFilesDir(), METRICS_FILE);
+        new Thread(new Runnable() {
+            public void run() {
+                Metrics.dumpToLog();
+                try {
+                    Metrics.dumpToFile(file);
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Could not write " + file, e);
+                }
+            }
+        }).start();
+    }
+
     @Override
     public void onCreateContextMenu(ContextMenu menu, View v,
             ContextMenuInfo menuInfo) {
@@ -179,8 +363,7 @@ public class LoanSharkr extends ListActivity {
                 startActivityForResult(i, ACTIVITY_CLOSED_LOANS);
                 return true;
             case DELETE_ID:
-                mDbHelper.deleteClient(info.id);
-                fillData();
+                deleteClient(info.id);
                 return true;
             case EDIT_ID:
                 i = new Intent(this, ClientEdit.class);
@@ -16,17 +16,19 @@
 
 package com.djpsoft.loansharkr;
 
-import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Method;
 import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Looper;
 import android.util.Log;
 
 /**
@@ -46,6 +48,7 @@ public class LoanSharkrDbAdapter {
     public static final String KEY_PHONE = "phone";
     public static final String KEY_NOTES = "notes";
     public static final String KEY_PHOTO = "photo";
+    public static final String KEY_PHOTOVERSION = "photo_version";
 
     public static final String KEY_CLIENTID = "client_id";
     public static final String KEY_DEBT = "debt";
@@ -53,6 +56,23 @@ public class LoanSharkrDbAdapter {
     public static final String KEY_DATE = "date";
     public static final String KEY_MATURITYDATE = "maturity_date";
     public static final String KEY_STATUS = "status";
+    public static final String KEY_BALANCE = "balance";
+    public static final String KEY_BALANCEDATE = "balance_date";
+    public static final String KEY_TOTALREPAYMENT = "total_repayment";
+
+    public static final String KEY_LOANID = "loan_id";
+    public static final String KEY_AMOUNT = "amount";
+
+    public static final String KEY_HASOVERDUE = "has_overdue";
+    public static final String KEY_OPENLOANCOUNT = "open_loan_count";
+    public static final String KEY_EARLIESTMATURITY = "earliest_maturity";
+    public static final String KEY_PRINCIPALOUTSTANDING = "principal_outstanding";
+    public static final String KEY_PROJECTEDREPAYMENT = "projected_repayment";
+    public static final String KEY_BADLOANCOUNT = "bad_loan_count";
+    public static final String KEY_PAIDLOANCOUNT = "paid_loan_count";
+
+    public static final String KEY_OVERDUECOUNT = "overdue_count";
+    public static final String KEY_DUESOONCOUNT = "due_soon_count";
 
     public static final int JPEG_QUALITY = 90;
 
@@ -60,9 +80,67 @@ public class LoanSharkrDbAdapter {
     public static final int LOAN_STATUS_PAID = 1;
     public static final int LOAN_STATUS_BAD = 2;
 
+    public static final int SORT_BY_NAME = 0;
+    public static final int SORT_BY_ID = 1;
+    public static final int SORT_BY_MATURITY = 2;
+
     private static final String TAG = "LoanSharkrDbAdapter";
-    private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
+    // statements compiled by this adapter, keyed by their sql
+    private final HashMap<String, SQLiteStatement> mStatements = new HashMap<String, SQLiteStatement>();
+
+    private final String mDatabaseName;
+    private SharedDatabase mShared;
+
+    /**
+     * The one connection to a database shared by every adapter in the
+     * process, it is opened by the first open() and closed by the last
+     * close()
+     */
+    private static class SharedDatabase {
+        DatabaseHelper mHelper;
+        SQLiteDatabase mDb;
+        int mOpenCount;
+        // built by the first getMaturityIndex(), changed by writes while
+        // they hold the database (see endIndexTransaction) and dropped with
+        // the connection
+        volatile MaturityIndex mMaturityIndex;
+    }
+
+    // the open databases by name, guarded by LoanSharkrDbAdapter.class
+    private static final HashMap<String, SharedDatabase> sDatabases = new HashMap<String, SharedDatabase>();
+
+    // latency of each public method, see Metrics. Methods that return a
+    // Cursor are timed until it is returned, rows are read as it is moved.
+    private static final Metrics.Timer TIMER_GET_MATURITY_INDEX = Metrics.timer("db.getMaturityIndex");
+    private static final Metrics.Timer TIMER_CREATE_CLIENT = Metrics.timer("db.createClient");
+    private static final Metrics.Timer TIMER_FETCH_PHOTO = Metrics.timer("db.fetchPhoto");
+    private static final Metrics.Timer TIMER_DELETE_CLIENT = Metrics.timer("db.deleteClient");
+    private static final Metrics.Timer TIMER_DELETE_CLIENTS = Metrics.timer("db.deleteClients");
+    private static final Metrics.Timer TIMER_FETCH_ALL_CLIENTS = Metrics.timer("db.fetchAllClients");
+    private static final Metrics.Timer TIMER_FETCH_ALL_CLIENTS_WITH_LOAN_SUMMARY = Metrics.timer("db.fetchAllClientsWithLoanSummary");
+    private static final Metrics.Timer TIMER_FETCH_CLIENTS_PAGE = Metrics.timer("db.fetchClientsPage");
+    private static final Metrics.Timer TIMER_SEARCH_CLIENTS = Metrics.timer("db.searchClients");
+    private static final Metrics.Timer TIMER_FETCH_CLIENT = Metrics.timer("db.fetchClient");
+    private static final Metrics.Timer TIMER_UPDATE_CLIENT = Metrics.timer("db.updateClient");
+    private static final Metrics.Timer TIMER_FETCH_ALL_LOANS_FROM_CLIENT = Metrics.timer("db.fetchAllLoansFromClient");
+    private static final Metrics.Timer TIMER_FETCH_LOANS_PAGE = Metrics.timer("db.fetchLoansPage");
+    private static final Metrics.Timer TIMER_CREATE_CLIENT_LOAN = Metrics.timer("db.createClientLoan");
+    private static final Metrics.Timer TIMER_DELETE_LOAN = Metrics.timer("db.deleteLoan");
+    private static final Metrics.Timer TIMER_FETCH_CLIENT_LOAN = Metrics.timer("db.fetchClientLoan");
+    private static final Metrics.Timer TIMER_UPDATE_CLIENT_LOAN = Metrics.timer("db.updateClientLoan");
+    private static final Metrics.Timer TIMER_FETCH_LEDGER = Metrics.timer("db.fetchLedger");
+    private static final Metrics.Timer TIMER_FETCH_LOAN_TOTALS = Metrics.timer("db.fetchLoanTotals");
+    private static final Metrics.Timer TIMER_REFRESH_DUE_LOANS = Metrics.timer("db.refreshDueLoans");
+    private static final Metrics.Timer TIMER_FETCH_DUE_LOAN_COUNTS = Metrics.timer("db.fetchDueLoanCounts");
+    private static final Metrics.Timer TIMER_CHECK_CLIENT_SUMMARY = Metrics.timer("db.checkClientSummary");
+    private static final Metrics.Timer TIMER_RECORD_PAYMENT = Metrics.timer("db.recordPayment");
+    private static final Metrics.Timer TIMER_FETCH_PAYMENTS = Metrics.timer("db.fetchPayments");
+    private static final Metrics.Timer TIMER_BEGIN_BULK_INSERT = Metrics.timer("db.beginBulkInsert");
+
+    // log a warning (once per method) when the database is used on the UI thread
+    private static volatile boolean sCheckMainThread = true;
+    private static final Set<String> sMainThreadAccess = new HashSet<String>();
 
     /**
      * Database creation sql statement
@@ -75,35 +153,679 @@ public class LoanSharkrDbAdapter {
         "create table loans (_id integer primary key autoincrement, "
         + "client_id integer, debt integer, weekly_interest integer, date integer, maturity_date integer, status integer);";
 
+    /**
+     * Index creation sql statements (added in version 5)
+     */
+    private static final String DATABASE_CREATE_LOANS_CLIENT_INDEX =
+        "create index loans_client_status_maturity on loans (client_id, status, maturity_date);";
+
+    private static final String DATABASE_CREATE_LOANS_STATUS_INDEX =
+        "create index loans_status_maturity on loans (status, maturity_date);";
+
+    /**
+     * A large bulk insert drops the status index and builds it again when it
+     * is closed, as loans arrive in no particular maturity order and every
+     * batch would rewrite pages all over the index. Opening the database
+     * restores it if the inserter never got to.
+     */
+    private static final String DATABASE_DROP_LOANS_STATUS_INDEX =
+        "drop index if exists loans_status_maturity;";
+
+    private static final String DATABASE_RESTORE_LOANS_STATUS_INDEX =
+        "create index if not exists loans_status_maturity on loans (status, maturity_date);";
+
+    /**
+     * Photo storage sql statements (added in version 6), photos are kept out
+     * of the clients rows so that client lists do not drag the blobs along
+     */
+    private static final String DATABASE_CREATE_PHOTOS =
+        "create table client_photos (client_id integer primary key, photo blob not null);";
+
+    private static final String DATABASE_ADD_PHOTO_VERSION =
+        "alter table clients add column photo_version integer not null default 0;";
+
+    private static final String DATABASE_MOVE_PHOTOS =
+        "insert into client_photos (client_id, photo) select _id, photo from clients where photo is not null;";
+
+    private static final String DATABASE_CLEAR_CLIENT_PHOTOS =
+        "update clients set photo_version = 1, photo = null where photo is not null;";
+
+    /**
+     * Index creation sql statement (added in version 7), lets client pages
+     * sorted by name seek straight to the first row of the page
+     */
+    private static final String DATABASE_CREATE_CLIENTS_NAME_INDEX =
+        "create index clients_client on clients (client);";
+
+    /**
+     * Full text index sql statements (added in version 8), the index rowid
+     * is the client _id
+     */
+    private static final String DATABASE_CREATE_CLIENTS_FTS =
+        "create virtual table clients_fts using fts3 (client, phone, notes);";
+
+    private static final String DATABASE_FILL_CLIENTS_FTS =
+        "insert into clients_fts (rowid, client, phone, notes) select _id, client, phone, notes from clients;";
+
+    /**
+     * Client summary sql statements (added in version 9). The summary of each
+     * client's loans is kept up to date by triggers, except that until
+     * version 13 the projected repayment (which needs compound interest that
+     * SQLite cannot calculate) was maintained by the loan methods.
+     * earliest_maturity is NO_MATURITY rather than null when a client has no
+     * open loans so that it can be used as an index key.
+     */
+    private static final long NO_MATURITY = Long.MAX_VALUE;
+
+    /**
+     * A loan's total_repayment when it is too big to store, and a client's
+     * projected_repayment when the sum is. Sums stop at TOO_BIG rather than
+     * overflowing, which SQLite would turn into an inexact REAL.
+     */
+    private static final long TOO_BIG = Long.MAX_VALUE;
+
+    // sums are added up in parts above and below this, see saturatedSum
+    private static final long SUM_SPLIT = 1000000000L;
+
+    private static final String DATABASE_CREATE_SUMMARY =
+        "create table client_summary (client_id integer primary key, "
+        + "open_loan_count integer not null default 0, principal_outstanding integer not null default 0, "
+        + "projected_repayment integer not null default 0, earliest_maturity integer not null default "
+        + NO_MATURITY + ", bad_loan_count integer not null default 0, paid_loan_count integer not null default 0);";
+
+    private static final String DATABASE_CREATE_SUMMARY_MATURITY_INDEX =
+        "create index client_summary_maturity on client_summary (earliest_maturity);";
+
+    private static final String DATABASE_CREATE_CLIENTS_INSERT_TRIGGER =
+        "create trigger clients_summary_insert after insert on clients begin "
+        + "insert into client_summary (client_id) values (new._id); end;";
+
+    private static final String DATABASE_CREATE_CLIENTS_DELETE_TRIGGER =
+        "create trigger clients_summary_delete after delete on clients begin "
+        + "delete from client_summary where client_id = old._id; end;";
+
+    /**
+     * Payments sql statements (added in version 10). Each loan keeps a
+     * checkpoint of its balance as of the date of its latest payment so that
+     * the balance can be brought up to date without replaying every payment.
+     */
+    private static final String DATABASE_CREATE_PAYMENTS =
+        "create table payments (_id integer primary key autoincrement, "
+        + "loan_id integer not null, amount integer not null, date integer not null);";
+
+    private static final String DATABASE_CREATE_PAYMENTS_LOAN_INDEX =
+        "create index payments_loan_date on payments (loan_id, date);";
+
+    private static final String DATABASE_ADD_LOAN_BALANCE =
+        "alter table loans add column balance integer;";
+
+    private static final String DATABASE_ADD_LOAN_BALANCE_DATE =
+        "alter table loans add column balance_date integer;";
+
+    private static final String DATABASE_INIT_LOAN_BALANCE =
+        "update loans set balance = debt, balance_date = date;";
+
+    /**
+     * Foreign key sql statements (added in version 11). SQLite on older
+     * devices parses but does not enforce foreign key clauses, so they are
+     * implemented with triggers instead: loans must belong to a client and
+     * payments to a loan, and deleting a client or loan deletes everything
+     * that belongs to it in the same statement.
+     */
+    private static final String DATABASE_CREATE_LOANS_CLIENT_FK_INSERT =
+        "create trigger loans_client_fk_insert before insert on loans "
+        + "when (select _id from clients where _id = new.client_id) is null begin "
+        + "select raise(abort, 'foreign key constraint failed: loans.client_id'); end;";
+
+    private static final String DATABASE_CREATE_LOANS_CLIENT_FK_UPDATE =
+        "create trigger loans_client_fk_update before update of client_id on loans "
+        + "when (select _id from clients where _id = new.client_id) is null begin "
+        + "select raise(abort, 'foreign key constraint failed: loans.client_id'); end;";
+
+    private static final String DATABASE_CREATE_PAYMENTS_LOAN_FK_INSERT =
+        "create trigger payments_loan_fk_insert before insert on payments "
+        + "when (select _id from loans where _id = new.loan_id) is null begin "
+        + "select raise(abort, 'foreign key constraint failed: payments.loan_id'); end;";
+
+    private static final String DATABASE_CREATE_PAYMENTS_LOAN_FK_UPDATE =
+        "create trigger payments_loan_fk_update before update of loan_id on payments "
+        + "when (select _id from loans where _id = new.loan_id) is null begin "
+        + "select raise(abort, 'foreign key constraint failed: payments.loan_id'); end;";
+
+    private static final String DATABASE_CREATE_CLIENTS_CASCADE_DELETE =
+        "create trigger clients_cascade_delete after delete on clients begin "
+        + "delete from loans where client_id = old._id; "
+        + "delete from client_photos where client_id = old._id; "
+        + "delete from clients_fts where rowid = old._id; end;";
+
+    private static final String DATABASE_CREATE_LOANS_CASCADE_DELETE =
+        "create trigger loans_cascade_delete after delete on loans begin "
+        + "delete from payments where loan_id = old._id; end;";
+
+    /**
+     * Due loan sql statements (added in version 12). DueDateService saves
+     * the open loans that are overdue or due soon. A loan drops out as soon
+     * as it is closed, moved or deleted, and is added again by the next run
+     * if it is still due. The loan edit form sets the maturity date and
+     * status every time, so only a change of value takes a loan out (since
+     * version 15).
+     */
+    private static final String DATABASE_CREATE_DUE_LOANS =
+        "create table due_loans (loan_id integer primary key, client_id integer not null, "
+        + "maturity_date integer not null, overdue integer not null);";
+
+    private static final String DATABASE_CREATE_LOANS_DUE_DELETE =
+        "create trigger loans_due_delete after delete on loans begin "
+        + "delete from due_loans where loan_id = old._id; end;";
+
+    private static final String DATABASE_CREATE_LOANS_DUE_UPDATE =
+        "create trigger loans_due_update after update of client_id, maturity_date, status on loans "
+        + "when new.client_id != old.client_id or new.maturity_date != old.maturity_date "
+        + "or new.status != old.status begin "
+        + "delete from due_loans where loan_id = old._id; end;";
+
+    /**
+     * Total repayment sql statements (added in version 13). Each loan keeps
+     * its total repayment (its balance at maturity) in a column, worked out
+     * whenever the loan or its balance is written, so lists read it rather
+     * than calculating it for every row and the summary triggers can add up
+     * the projected repayment. The existing loans are filled in
+     * TOTAL_REPAYMENT_BATCH_SIZE at a time.
+     */
+    private static final String DATABASE_ADD_LOAN_TOTAL_REPAYMENT =
+        "alter table loans add column total_repayment integer;";
+
+    private static final String DATABASE_FETCH_LOANS_TO_FILL =
+        "select _id, balance_date, maturity_date, balance, weekly_interest from loans where _id > ? "
+        + "order by _id limit ?;";
+
+    private static final String DATABASE_FILL_LOAN_TOTAL_REPAYMENT =
+        "update loans set total_repayment = ? where _id = ?;";
+
+    /**
+     * Projected repayment sql statement (version 14), version 13's triggers
+     * let sums that overflowed become REAL
+     */
+    private static final String DATABASE_FILL_SUMMARY_PROJECTION =
+        "update client_summary set projected_repayment = (select " + saturatedSum("total_repayment")
+        + " from loans where loans.client_id = client_summary.client_id and status = 0);";
+
+    private static final int TOTAL_REPAYMENT_BATCH_SIZE = 1000;
+
+    // rows left behind by deletes that were interrupted before version 11
+    private static final String[] DATABASE_DELETE_ORPHANS = {
+        "delete from loans where client_id not in (select _id from clients);",
+        "delete from payments where loan_id not in (select _id from loans);",
+        "delete from client_photos where client_id not in (select _id from clients);",
+        "delete from clients_fts where rowid not in (select _id from clients);",
+        "delete from client_summary where client_id not in (select _id from clients);"
+    };
+
+    /**
+     * Statements run by the adapter's write methods, each is compiled once
+     * per adapter (see statement()) and run with bound parameters so it is
+     * never parsed or planned again
+     */
+    private static final String SQL_INSERT_CLIENT =
+        "insert into clients (client, phone, notes) values (?, ?, ?);";
+
+    private static final String SQL_UPDATE_CLIENT =
+        "update clients set client = ?, phone = ?, notes = ? where _id = ?;";
+
+    private static final String SQL_DELETE_CLIENT =
+        "delete from clients where _id = ?;";
+
+    private static final String SQL_INSERT_CLIENT_FTS =
+        "insert into clients_fts (rowid, client, phone, notes) values (?, ?, ?, ?);";
+
+    private static final String SQL_DELETE_CLIENT_FTS =
+        "delete from clients_fts where rowid = ?;";
+
+    private static final String SQL_REPLACE_PHOTO =
+        "insert or replace into client_photos (client_id, photo) values (?, ?);";
+
+    private static final String SQL_BUMP_PHOTO_VERSION =
+        "update clients set photo_version = photo_version + 1 where _id = ?;";
+
+    private static final String SQL_INSERT_LOAN =
+        "insert into loans (client_id, debt, weekly_interest, date, maturity_date, status, balance, "
+        + "balance_date, total_repayment) values (?, ?, ?, ?, ?, ?, ?, ?, ?);";
+
+    private static final String SQL_UPDATE_LOAN =
+        "update loans set debt = ?, weekly_interest = ?, maturity_date = ?, status = ? where _id = ?;";
+
+    private static final String SQL_UPDATE_LOAN_BALANCE =
+        "update loans set balance = ?, balance_date = ?, total_repayment = ? where _id = ?;";
+
+    private static final String SQL_DELETE_LOAN =
+        "delete from loans where _id = ?;";
+
+    private static final String SQL_INSERT_PAYMENT =
+        "insert into payments (loan_id, amount, date) values (?, ?, ?);";
+
+    private static final String SQL_CHANGES =
+        "select changes();";
+
+    /**
+     * Point lookups, which return rows so are run as queries with bound
+     * arguments. Their sql never changes so the database's own compiled
+     * statement cache is hit.
+     */
+    private static final String SQL_FETCH_CLIENT =
+        "select _id, client, phone, notes, photo_version from clients where _id = ?;";
+
+    private static final String SQL_FETCH_LOAN =
+        "select _id, client_id, debt, weekly_interest, date, maturity_date, status, balance, balance_date "
+        + "from loans where _id = ?;";
+
+    private static final String SQL_FETCH_LOAN_BALANCE =
+        "select balance_date, maturity_date, balance, weekly_interest from loans where _id = ?;";
+
+    private static final String SQL_FETCH_PHOTO =
+        "select photo from client_photos where client_id = ?;";
+
+    private static final String SQL_FETCH_OPEN_MATURITIES =
+        "select _id, maturity_date from loans where status = 0;";
+
+    private static final String SQL_FETCH_OPEN_LOANS_OF_CLIENT =
+        "select _id from loans where client_id = ? and status = 0;";
+
+    private static final String SQL_FETCH_PAYMENT_HISTORY =
+        "select amount, date from payments where loan_id = ? order by date, _id;";
+
     private static final String DATABASE_NAME = "data";
     private static final String DATABASE_TABLE_CLIENTS = "clients";
     private static final String DATABASE_TABLE_LOANS = "loans";
-    private static final int DATABASE_VERSION = 4;
+    private static final String DATABASE_TABLE_PHOTOS = "client_photos";
+    private static final String DATABASE_TABLE_CLIENTS_FTS = "clients_fts";
+    private static final String DATABASE_TABLE_SUMMARY = "client_summary";
+    private static final String DATABASE_TABLE_SUMMARY_CHECK = "client_summary_check";
+    private static final String DATABASE_TABLE_PAYMENTS = "payments";
+    private static final String DATABASE_TABLE_DUE_LOANS = "due_loans";
+    private static final int DATABASE_VERSION = 15;
+
+    /**
+     * The oldest version that can be migrated without losing data, the
+     * DATABASE_CREATE statements above create this version
+     */
+    private static final int DATABASE_BASE_VERSION = 4;
 
     private final Context mCtx;
 
+    /**
+     * The position of the last row of a page, the next page starts right
+     * after it (keyset pagination). Which of the sort keys is used depends
+     * on the sort order of the query.
+     */
+    public static class PageKey {
+        final String mName;
+        final long mMaturity;
+        final long mRowId;
+
+        PageKey(String name, long maturity, long rowId) {
+            mName = name;
+            mMaturity = maturity;
+            mRowId = rowId;
+        }
+
+        /**
+         * Return the key of the last row of a page of clients
+         *
+         * @param page a page from fetchClientsPage
+         * @return the key or null if the page is empty
+         */
+        public static PageKey lastClient(Cursor page) {
+            if (!page.moveToLast()) {
+                return null;
+            }
+            int maturityIndex = page.getColumnIndexOrThrow(KEY_EARLIESTMATURITY);
+            return new PageKey(page.getString(page.getColumnIndexOrThrow(KEY_CLIENT)),
+                    page.isNull(maturityIndex) ? Long.MAX_VALUE : page.getLong(maturityIndex),
+                    page.getLong(page.getColumnIndexOrThrow(KEY_ROWID)));
+        }
+
+        /**
+         * Return the key of the last row of a page of loans
+         *
+         * @param page a page from fetchLoansPage
+         * @return the key or null if the page is empty
+         */
+        public static PageKey lastLoan(Cursor page) {
+            if (!page.moveToLast()) {
+                return null;
+            }
+            return new PageKey(null, page.getLong(page.getColumnIndexOrThrow(KEY_MATURITYDATE)),
+                    page.getLong(page.getColumnIndexOrThrow(KEY_ROWID)));
+        }
+    }
+
     private static class DatabaseHelper extends SQLiteOpenHelper {
 
-        DatabaseHelper(Context context) {
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(DATABASE_CREATE_CLIENTS);
             db.execSQL(DATABASE_CREATE_LOANS);
+            migrate(db, DATABASE_BASE_VERSION, DATABASE_VERSION);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS clients");
-            db.execSQL("DROP TABLE IF EXISTS loans");
-            onCreate(db);
+            if (oldVersion < DATABASE_BASE_VERSION) {
+                Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                        + newVersion + ", which will destroy all old data");
+                db.execSQL("DROP TABLE IF EXISTS clients");
+                db.execSQL("DROP TABLE IF EXISTS loans");
+                onCreate(db);
+                return;
+            }
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+            migrate(db, oldVersion, newVersion);
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if (!db.isReadOnly()) {
+                enableWriteAheadLogging(db);
+                db.execSQL(DATABASE_RESTORE_LOANS_STATUS_INDEX);
+            }
+        }
+
+        /**
+         * Switch the database to write-ahead logging so that readers do not
+         * block on writers. SQLiteDatabase.enableWriteAheadLogging() (which
+         * also gives the database a pool of reader connections) is only
+         * available from API 11, so fall back to the journal_mode pragma,
+         * which older versions of SQLite ignore.
+         *
+         * @param db the database
+         */
+        private void enableWriteAheadLogging(SQLiteDatabase db) {
+            try {
+                Method enable = SQLiteDatabase.class.getMethod("enableWriteAheadLogging");
+                enable.invoke(db);
+                return;
+            }
+            catch (NoSuchMethodException e) {
+                // pre API 11
+            }
+            catch (Exception e) {
+                Log.w(TAG, "Could not enable write-ahead logging", e);
+                return;
+            }
+            Cursor c = db.rawQuery("PRAGMA journal_mode=WAL", null);
+            try {
+                if (c.moveToFirst()) {
+                    Log.i(TAG, "Journal mode " + c.getString(0));
+                }
+            }
+            finally {
+                c.close();
+            }
+        }
+
+        /**
+         * Apply each migration step in turn, SQLiteOpenHelper runs this
+         * inside a transaction so a failed step leaves the old version intact
+         *
+         * @param db the database
+         * @param oldVersion the current version of the schema
+         * @param newVersion the version to migrate to
+         */
+        private void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+            for (int version = oldVersion + 1; version <= newVersion; version++) {
+                switch (version) {
+                case 5:
+                    db.execSQL(DATABASE_CREATE_LOANS_CLIENT_INDEX);
+                    db.execSQL(DATABASE_CREATE_LOANS_STATUS_INDEX);
+                    break;
+                case 6:
+                    db.execSQL(DATABASE_CREATE_PHOTOS);
+                    db.execSQL(DATABASE_ADD_PHOTO_VERSION);
+                    db.execSQL(DATABASE_MOVE_PHOTOS);
+                    db.execSQL(DATABASE_CLEAR_CLIENT_PHOTOS);
+                    break;
+                case 7:
+                    db.execSQL(DATABASE_CREATE_CLIENTS_NAME_INDEX);
+                    break;
+                case 8:
+                    db.execSQL(DATABASE_CREATE_CLIENTS_FTS);
+                    db.execSQL(DATABASE_FILL_CLIENTS_FTS);
+                    break;
+                case 9:
+                    // the summary is filled by version 10, which changes
+                    // what it is calculated from
+                    db.execSQL(DATABASE_CREATE_SUMMARY);
+                    db.execSQL(DATABASE_CREATE_SUMMARY_MATURITY_INDEX);
+                    db.execSQL(DATABASE_CREATE_CLIENTS_INSERT_TRIGGER);
+                    db.execSQL(DATABASE_CREATE_CLIENTS_DELETE_TRIGGER);
+                    createLoanSummaryTriggers(db, KEY_DEBT, null);
+                    break;
+                case 10:
+                    db.execSQL(DATABASE_CREATE_PAYMENTS);
+                    db.execSQL(DATABASE_CREATE_PAYMENTS_LOAN_INDEX);
+                    db.execSQL(DATABASE_ADD_LOAN_BALANCE);
+                    db.execSQL(DATABASE_ADD_LOAN_BALANCE_DATE);
+                    db.execSQL(DATABASE_INIT_LOAN_BALANCE);
+                    // the summary now follows the loan balances
+                    db.execSQL("drop trigger loans_summary_insert;");
+                    db.execSQL("drop trigger loans_summary_delete;");
+                    db.execSQL("drop trigger loans_summary_update;");
+                    createLoanSummaryTriggers(db, KEY_BALANCE, null);
+                    db.execSQL("DELETE FROM " + DATABASE_TABLE_SUMMARY);
+                    // the projected repayments are added up by version 14
+                    fillClientSummary(db, DATABASE_TABLE_SUMMARY, null);
+                    break;
+                case 11:
+                    for (String sql : DATABASE_DELETE_ORPHANS) {
+                        db.execSQL(sql);
+                    }
+                    db.execSQL(DATABASE_CREATE_LOANS_CLIENT_FK_INSERT);
+                    db.execSQL(DATABASE_CREATE_LOANS_CLIENT_FK_UPDATE);
+                    db.execSQL(DATABASE_CREATE_PAYMENTS_LOAN_FK_INSERT);
+                    db.execSQL(DATABASE_CREATE_PAYMENTS_LOAN_FK_UPDATE);
+                    db.execSQL(DATABASE_CREATE_CLIENTS_CASCADE_DELETE);
+                    db.execSQL(DATABASE_CREATE_LOANS_CASCADE_DELETE);
+                    break;
+                case 12:
+                    // filled by the first run of DueDateService
+                    db.execSQL(DATABASE_CREATE_DUE_LOANS);
+                    db.execSQL(DATABASE_CREATE_LOANS_DUE_DELETE);
+                    db.execSQL(DATABASE_CREATE_LOANS_DUE_UPDATE);
+                    break;
+                case 13:
+                    db.execSQL(DATABASE_ADD_LOAN_TOTAL_REPAYMENT);
+                    fillTotalRepayments(db);
+                    // the summary now adds up the projected repayments too
+                    db.execSQL("drop trigger loans_summary_insert;");
+                    db.execSQL("drop trigger loans_summary_delete;");
+                    db.execSQL("drop trigger loans_summary_update;");
+                    createLoanSummaryTriggers(db, KEY_BALANCE, KEY_TOTALREPAYMENT);
+                    // the projected repayments are added up by version 14
+                    break;
+                case 14:
+                    db.execSQL("drop trigger loans_summary_insert;");
+                    db.execSQL("drop trigger loans_summary_delete;");
+                    db.execSQL("drop trigger loans_summary_update;");
+                    createLoanSummaryTriggers(db, KEY_BALANCE, KEY_TOTALREPAYMENT);
+                    db.execSQL(DATABASE_FILL_SUMMARY_PROJECTION);
+                    break;
+                case 15:
+                    db.execSQL("drop trigger loans_due_update;");
+                    db.execSQL(DATABASE_CREATE_LOANS_DUE_UPDATE);
+                    break;
+                default:
+                    throw new SQLException("No migration to database version " + version);
+                }
+            }
         }
     }
 
+    /**
+     * Fill in the total repayment of every loan (see version 13), reading
+     * the loans a batch at a time so that the cursor window stays small
+     * however many loans there are
+     *
+     * @param db the database
+     */
+    private static void fillTotalRepayments(SQLiteDatabase db) {
+        SQLiteStatement update = db.compileStatement(DATABASE_FILL_LOAN_TOTAL_REPAYMENT);
+        String batchSize = Integer.toString(TOTAL_REPAYMENT_BATCH_SIZE);
+        long after = 0;
+        try {
+            int count;
+            do {
+                Cursor c = db.rawQuery(DATABASE_FETCH_LOANS_TO_FILL, new String[] {Long.toString(after), batchSize});
+                try {
+                    count = c.getCount();
+                    while (c.moveToNext()) {
+                        after = c.getLong(0);
+                        update.bindLong(1, totalRepayment(c.getLong(1), c.getLong(2), c.getLong(3), c.getLong(4)));
+                        update.bindLong(2, after);
+                        update.execute();
+                    }
+                }
+                finally {
+                    c.close();
+                }
+            } while (count == TOTAL_REPAYMENT_BATCH_SIZE);
+        }
+        finally {
+            update.close();
+        }
+    }
+
+    /**
+     * Create the triggers that keep the client summary in step with the
+     * loans. When a loan is added to its client's summary the earliest
+     * maturity may only move earlier, when one is taken out the earliest
+     * maturity has to be found again (an index search) if the loan was open.
+     * The projected repayment stops at TOO_BIG, and is added up again if a
+     * loan is taken out of a sum that had stopped there.
+     *
+     * @param db the database
+     * @param balance the loans column that principal_outstanding adds up
+     * @param totalRepayment the loans column that projected_repayment adds
+     * up, or null if the triggers leave it alone
+     */
+    private static void createLoanSummaryTriggers(SQLiteDatabase db, String balance, String totalRepayment) {
+        String addNewProjection = "";
+        String removeOldProjection = "";
+        String projectionColumn = "";
+        if (totalRepayment != null) {
+            addNewProjection = "projected_repayment = (case when new.status != 0 then projected_repayment "
+                + "when new." + totalRepayment + " > " + TOO_BIG + " - projected_repayment then " + TOO_BIG
+                + " else projected_repayment + new." + totalRepayment + " end), ";
+            // an update trigger sees the loan as it is now, so it is left out
+            removeOldProjection = "projected_repayment = (case when old.status != 0 then projected_repayment "
+                + "when projected_repayment = " + TOO_BIG + " then (select " + saturatedSum(totalRepayment)
+                + " from loans where client_id = old.client_id and status = 0 and _id != old._id) "
+                + "else projected_repayment - old." + totalRepayment + " end), ";
+            projectionColumn = totalRepayment + ", ";
+        }
+        String addNewLoan = "update client_summary set open_loan_count = open_loan_count + (new.status = 0), "
+            + "principal_outstanding = principal_outstanding + (case when new.status = 0 then new." + balance
+            + " else 0 end), " + addNewProjection
+            + "earliest_maturity = (case when new.status = 0 then min(earliest_maturity, new.maturity_date) "
+            + "else earliest_maturity end), "
+            + "bad_loan_count = bad_loan_count + (new.status = 2), paid_loan_count = paid_loan_count + (new.status = 1) "
+            + "where client_id = new.client_id;";
+        String removeOldLoan = "update client_summary set open_loan_count = open_loan_count - (old.status = 0), "
+            + "principal_outstanding = principal_outstanding - (case when old.status = 0 then old." + balance
+            + " else 0 end), " + removeOldProjection
+            + "earliest_maturity = (case when old.status = 0 then ifnull((select min(maturity_date) from loans "
+            + "where client_id = old.client_id and status = 0), " + NO_MATURITY + ") else earliest_maturity end), "
+            + "bad_loan_count = bad_loan_count - (old.status = 2), paid_loan_count = paid_loan_count - (old.status = 1) "
+            + "where client_id = old.client_id;";
+        db.execSQL("create trigger loans_summary_insert after insert on loans begin " + addNewLoan + " end;");
+        db.execSQL("create trigger loans_summary_delete after delete on loans begin " + removeOldLoan + " end;");
+        db.execSQL("create trigger loans_summary_update after update of client_id, " + balance
+                + ", " + projectionColumn + "maturity_date, status on loans begin " + removeOldLoan + " "
+                + addNewLoan + " end;");
+    }
+
+    /**
+     * Calculate the summary of every client's loans from scratch
+     *
+     * @param db the database
+     * @param table the (empty) table to fill, client_summary or a table of
+     * the same shape
+     * @param totalRepayment the loans column that projected_repayment adds
+     * up, or null to leave it 0
+     */
+    private static void fillClientSummary(SQLiteDatabase db, String table, String totalRepayment) {
+        String loansOfClient = " FROM " + DATABASE_TABLE_LOANS + " l WHERE l." + KEY_CLIENTID + " = c."
+                + KEY_ROWID + " AND l." + KEY_STATUS + " = ";
+        String projection = totalRepayment == null ? "0" : "(SELECT " + saturatedSum("l." + totalRepayment)
+                + loansOfClient + LOAN_STATUS_OPEN + ")";
+        db.execSQL("INSERT INTO " + table + " (" + KEY_CLIENTID + ", " + KEY_OPENLOANCOUNT + ", "
+                + KEY_PRINCIPALOUTSTANDING + ", " + KEY_PROJECTEDREPAYMENT + ", " + KEY_EARLIESTMATURITY + ", "
+                + KEY_BADLOANCOUNT + ", " + KEY_PAIDLOANCOUNT + ") SELECT c." + KEY_ROWID
+                + ", (SELECT COUNT(*)" + loansOfClient + LOAN_STATUS_OPEN + ")"
+                + ", (SELECT IFNULL(SUM(l." + KEY_BALANCE + "), 0)" + loansOfClient + LOAN_STATUS_OPEN + ")"
+                + ", " + projection
+                + ", IFNULL((SELECT MIN(l." + KEY_MATURITYDATE + ")" + loansOfClient + LOAN_STATUS_OPEN + "), "
+                + NO_MATURITY + ")"
+                + ", (SELECT COUNT(*)" + loansOfClient + LOAN_STATUS_BAD + ")"
+                + ", (SELECT COUNT(*)" + loansOfClient + LOAN_STATUS_PAID + ")"
+                + " FROM " + DATABASE_TABLE_CLIENTS + " c");
+    }
+
+    /**
+     * Return an aggregate expression that adds up a column exactly, or gives
+     * TOO_BIG if the sum is too big to store. sum() fails when it overflows
+     * (even in a branch that is not taken) and total() rounds, so the values
+     * are added up in parts above and below SUM_SPLIT, which cannot overflow,
+     * and put back together only if the result fits.
+     *
+     * @param column the column to add up
+     * @return the expression, which is 0 if there are no rows
+     */
+    private static String saturatedSum(String column) {
+        String high = "SUM(" + column + " / " + SUM_SPLIT + ")";
+        String low = "SUM(" + column + " % " + SUM_SPLIT + ")";
+        return "IFNULL(CASE WHEN " + high + " > (" + TOO_BIG + " - MAX(" + low + ", 0)) / " + SUM_SPLIT
+            + " THEN " + TOO_BIG + " ELSE " + high + " * " + SUM_SPLIT + " + " + low + " END, 0)";
+    }
+
+    /**
+     * The total repayment of a loan as stored in its total_repayment column,
+     * ie its balance at maturity
+     *
+     * @param balanceDate the date of the loan's balance checkpoint (ms)
+     * @param maturityDate the maturity date of the loan (ms)
+     * @param balance the loan's balance checkpoint in cents
+     * @param weeklyInterest the weekly interest rate in hundredths of a percent
+     * @return the total repayment in cents, TOO_BIG if it is too big to
+     * represent
+     */
+    private static long totalRepayment(long balanceDate, long maturityDate, long balance, long weeklyInterest) {
+        long total = Money.CalculateBalance(balanceDate, maturityDate, balance, weeklyInterest);
+        return total != Money.OVERFLOW ? total : TOO_BIG;
+    }
+
+    /**
+     * Bring a loan balance up to date, see LoanHelper.CalculateBalance
+     *
+     * @param balanceDate the date of the known balance (ms)
+     * @param date the date to calculate the balance at (ms)
+     * @param balance the known balance in cents
+     * @param weeklyInterest the weekly interest rate in hundredths of a percent
+     * @return the balance at date in cents
+     * @throws SQLException if the balance is too big to store
+     */
+    private static long accrue(long balanceDate, long date, long balance, long weeklyInterest) {
+        long accrued = Money.CalculateBalance(balanceDate, date, balance, weeklyInterest);
+        if (accrued == Money.OVERFLOW) {
+            throw new SQLException("Loan balance is too big to store");
+        }
+        return accrued;
+    }
+
     /**
      * Constructor - takes the context to allow the database to be
      * opened/created
@@ -111,7 +833,19 @@ public class LoanSharkrDbAdapter {
      * @param ctx the Context within which to work
      */
     public LoanSharkrDbAdapter(Context ctx) {
+        this(ctx, DATABASE_NAME);
+    }
+
+    /**
+     * Constructor for a database other than the app's own, so that tests and
+     * benchmarks can fill and delete one without touching the real loans
+     *
+     * @param ctx the Context within which to work
+     * @param databaseName the name of the database file
+     */
+    public LoanSharkrDbAdapter(Context ctx, String databaseName) {
         this.mCtx = ctx;
+        this.mDatabaseName = databaseName;
     }
 
     /**
@@ -119,42 +853,372 @@ public class LoanSharkrDbAdapter {
      * instance of the database. If it cannot be created, throw an exception to
      * signal the failure
      *
+     * All adapters share a single connection, which stays open until every
+     * adapter that opened it has been closed. Opening an adapter that is
+     * already open does nothing.
+     *
      * @return this (self reference, allowing this to be chained in an
      *         initialization call)
      * @throws SQLException if the database could be neither opened or created
      */
     public LoanSharkrDbAdapter open() throws SQLException {
-        mDbHelper = new DatabaseHelper(mCtx);
-        mDb = mDbHelper.getWritableDatabase();
+        synchronized (LoanSharkrDbAdapter.class) {
+            if (mDb != null) {
+                return this;
+            }
+            SharedDatabase shared = sDatabases.get(mDatabaseName);
+            if (shared == null) {
+                DatabaseHelper helper = new DatabaseHelper(mCtx.getApplicationContext(), mDatabaseName);
+                shared = new SharedDatabase();
+                shared.mDb = helper.getWritableDatabase();
+                shared.mHelper = helper;
+                sDatabases.put(mDatabaseName, shared);
+            }
+            shared.mOpenCount++;
+            mShared = shared;
+            mDb = shared.mDb;
+        }
         return this;
     }
 
+    /**
+     * Release this adapter's reference to the shared connection, closing it
+     * if this was the last one. Closing an adapter that is not open does
+     * nothing.
+     */
     public void close() {
-        mDbHelper.close();
+        synchronized (LoanSharkrDbAdapter.class) {
+            if (mDb == null) {
+                return;
+            }
+            synchronized (mStatements) {
+                for (SQLiteStatement statement : mStatements.values()) {
+                    statement.close();
+                }
+                mStatements.clear();
+            }
+            mDb = null;
+            if (--mShared.mOpenCount == 0) {
+                mShared.mMaturityIndex = null;
+                mShared.mHelper.close();
+                sDatabases.remove(mDatabaseName);
+            }
+            mShared = null;
+        }
+    }
+
+
+    /**
+     * Turn the check for database access on the UI thread on or off. When on
+     * (the default) the first call of each adapter method from the UI
+     * thread is logged with a stack trace, so that new regressions show up.
+     *
+     * @param enabled true to check
+     */
+    public static void setMainThreadCheck(boolean enabled) {
+        sCheckMainThread = enabled;
     }
 
+    private static void checkNotMainThread(String method) {
+        if (sCheckMainThread && Looper.myLooper() == Looper.getMainLooper()) {
+            synchronized (sMainThreadAccess) {
+                if (!sMainThreadAccess.add(method)) {
+                    return;
+                }
+            }
+            Log.w(TAG, "Database access on the main thread: " + method, new Throwable());
+        }
+    }
 
     /**
-     * Create a new client using the name and notes and bitmap provided. If the
+     * Return the in-memory index of open loans by maturity date, building
+     * it from the loans the first time (which reads every open loan). The
+     * index is shared by all adapters and is kept up to date by their write
+     * methods.
+     *
+     * @return the index
+     */
+    public MaturityIndex getMaturityIndex() {
+        checkNotMainThread("getMaturityIndex");
+        long start = Metrics.start();
+        try {
+            MaturityIndex index = mShared.mMaturityIndex;
+            if (index != null) {
+                return index;
+            }
+            boolean nested = mDb.inTransaction();
+            // writes only change the index inside their transactions, so
+            // none can commit part way through reading the loans
+            mDb.beginTransaction();
+            try {
+                index = mShared.mMaturityIndex;
+                if (index == null) {
+                    index = new MaturityIndex(System.currentTimeMillis());
+                    Cursor c = mDb.rawQuery(SQL_FETCH_OPEN_MATURITIES, null);
+                    try {
+                        while (c.moveToNext()) {
+                            index.put(c.getLong(0), c.getLong(1));
+                        }
+                    }
+                    finally {
+                        c.close();
+                    }
+                    // a caller's transaction could still roll back what was read
+                    if (!nested) {
+                        mShared.mMaturityIndex = index;
+                    }
+                }
+                mDb.setTransactionSuccessful();
+                return index;
+            }
+            finally {
+                mDb.endTransaction();
+            }
+        }
+        finally {
+            TIMER_GET_MATURITY_INDEX.stop(start);
+        }
+    }
+
+    /**
+     * End a write transaction that has changed the maturity index. Writes
+     * change the index once their transaction is marked successful (while
+     * it keeps the index from being built), so the index is only wrong if
+     * the transaction then fails to commit, or is nested in a caller's
+     * transaction that could still roll back. The index is then dropped, to
+     * be built again.
+     *
+     * @param changed the index that was changed, or null if none was
+     */
+    private void endIndexTransaction(MaturityIndex changed) {
+        boolean committed = false;
+        try {
+            mDb.endTransaction();
+            committed = !mDb.inTransaction();
+        }
+        finally {
+            if (changed != null && !committed) {
+                mShared.mMaturityIndex = null;
+            }
+        }
+    }
+
+    /**
+     * Return the ids of a client's open loans if the maturity index has been
+     * built, so they can be removed from it once the client is deleted
+     *
+     * @param clientId id of the client
+     * @return the loan ids, or null if the index has not been built
+     */
+    private long[] fetchIndexedLoans(long clientId) {
+        if (mShared.mMaturityIndex == null) {
+            return null;
+        }
+        Cursor c = mDb.rawQuery(SQL_FETCH_OPEN_LOANS_OF_CLIENT, new String[] {Long.toString(clientId)});
+        try {
+            long[] loanIds = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                loanIds[i] = c.getLong(0);
+            }
+            return loanIds;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Return this adapter's compiled copy of a statement, compiling it the
+     * first time it is used
+     *
+     * The statements are shared by every thread using the adapter, so a
+     * statement's lock must be held while it is bound and run. Take it
+     * inside a transaction (as the helpers below do) so that the database
+     * lock is always taken first, otherwise two threads can deadlock.
+     *
+     * @param sql one of the SQL_ statements
+     * @return the compiled statement
+     */
+    private SQLiteStatement statement(String sql) {
+        synchronized (mStatements) {
+            SQLiteStatement statement = mStatements.get(sql);
+            if (statement == null) {
+                statement = mDb.compileStatement(sql);
+                mStatements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, Object[] args) {
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null) {
+                statement.bindNull(i + 1);
+            }
+            else if (arg instanceof String) {
+                statement.bindString(i + 1, (String) arg);
+            }
+            else if (arg instanceof byte[]) {
+                statement.bindBlob(i + 1, (byte[]) arg);
+            }
+            else {
+                statement.bindLong(i + 1, ((Number) arg).longValue());
+            }
+        }
+    }
+
+    /**
+     * Run a compiled insert, like SQLiteDatabase.insert a row that fails to
+     * insert is logged rather than thrown. A failed insert is not marked
+     * successful, so the transaction it is part of is rolled back.
+     *
+     * @param sql one of the SQL_INSERT statements
+     * @param args the values to bind
+     * @return rowId or -1 if failed
+     */
+    private long insert(String sql, Object... args) {
+        SQLiteStatement statement = statement(sql);
+        mDb.beginTransaction();
+        try {
+            long rowId;
+            synchronized (statement) {
+                bind(statement, args);
+                try {
+                    rowId = statement.executeInsert();
+                }
+                catch (SQLException e) {
+                    Log.e(TAG, "Error inserting " + sql, e);
+                    return -1;
+                }
+            }
+            mDb.setTransactionSuccessful();
+            return rowId;
+        }
+        finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Run a compiled update or delete
+     *
+     * @param sql one of the SQL_UPDATE or SQL_DELETE statements
+     * @param args the values to bind
+     * @return the number of rows changed
+     */
+    private int execute(String sql, Object... args) {
+        SQLiteStatement statement = statement(sql);
+        SQLiteStatement changes = statement(SQL_CHANGES);
+        // the transaction keeps other threads off the connection so
+        // changes() counts this statement's rows (triggers' are not counted)
+        mDb.beginTransaction();
+        try {
+            int count;
+            synchronized (statement) {
+                bind(statement, args);
+                statement.execute();
+            }
+            synchronized (changes) {
+                count = (int) changes.simpleQueryForLong();
+            }
+            mDb.setTransactionSuccessful();
+            return count;
+        }
+        finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Create a new client using the name and notes and photo provided. If the
      * client is successfully created return the new rowId for that client,
      * otherwise return a -1 to indicate failure.
      *
      * @param client the name of the client
      * @param notes the notes about the client
-     * @param photo a picture of the client
+     * @param photo a picture of the client as JPEG data (see PhotoEncoder),
+     * or null for none
      * @return rowId or -1 if failed
      */
-    public long createClient(String client, String phone, String notes, Bitmap photo) {
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_CLIENT, client);
-        initialValues.put(KEY_PHONE, phone);
-        initialValues.put(KEY_NOTES, notes);
-        if (photo != null) {
-            ByteArrayOutputStream s = new ByteArrayOutputStream();
-            photo.compress(CompressFormat.JPEG, JPEG_QUALITY, s);
-            initialValues.put(KEY_PHOTO, s.toByteArray());
+    public long createClient(String client, String phone, String notes, byte[] photo) {
+        checkNotMainThread("createClient");
+        long start = Metrics.start();
+        try {
+            mDb.beginTransaction();
+            try {
+                long rowId = insert(SQL_INSERT_CLIENT, client, phone, notes);
+                if (rowId == -1 || !indexClient(rowId, client, phone, notes)
+                        || (photo != null && !storePhoto(rowId, photo))) {
+                    return -1;
+                }
+                mDb.setTransactionSuccessful();
+                return rowId;
+            }
+            finally {
+                mDb.endTransaction();
+            }
+        }
+        finally {
+            TIMER_CREATE_CLIENT.stop(start);
+        }
+    }
+
+    /**
+     * Save a client photo to the photo store and bump the client's photo
+     * version so that any cached copy of the old photo is invalidated
+     *
+     * @param clientId id of the client
+     * @param photo a picture of the client as JPEG data
+     * @return true if the photo was saved, false otherwise
+     */
+    private boolean storePhoto(long clientId, byte[] photo) {
+        if (insert(SQL_REPLACE_PHOTO, clientId, photo) == -1) {
+            return false;
+        }
+        execute(SQL_BUMP_PHOTO_VERSION, clientId);
+        return true;
+    }
+
+    /**
+     * Replace a client's entry in the full text index, FTS3 tables do not
+     * support INSERT OR REPLACE so the old entry is deleted first
+     *
+     * @param rowId id of the client
+     * @param client the name of the client
+     * @param phone the client's phone number
+     * @param notes the notes about the client
+     * @return true if the client was indexed, false otherwise
+     */
+    private boolean indexClient(long rowId, String client, String phone, String notes) {
+        execute(SQL_DELETE_CLIENT_FTS, rowId);
+        return insert(SQL_INSERT_CLIENT_FTS, rowId, client, phone, notes) != -1;
+    }
+
+    /**
+     * Return the JPEG data of a client's photo
+     *
+     * @param clientId id of the client
+     * @return the photo or null if the client has no photo
+     */
+    public byte[] fetchPhoto(long clientId) {
+        checkNotMainThread("fetchPhoto");
+        long start = Metrics.start();
+        try {
+            Cursor c = mDb.rawQuery(SQL_FETCH_PHOTO, new String[] {Long.toString(clientId)});
+            try {
+                if (c.moveToFirst()) {
+                    return c.getBlob(0);
+                }
+                return null;
+            }
+            finally {
+                c.close();
+            }
+        }
+        finally {
+            TIMER_FETCH_PHOTO.stop(start);
         }
-        return mDb.insert(DATABASE_TABLE_CLIENTS, null, initialValues);
     }
 
     /**
@@ -164,8 +1228,72 @@ public class LoanSharkrDbAdapter {
      * @return true if deleted, false otherwise
      */
     public boolean deleteClient(long rowId) {
-        return mDb.delete(DATABASE_TABLE_CLIENTS, KEY_ROWID + "=" + rowId, null) > 0 &&
-               mDb.delete(DATABASE_TABLE_LOANS, KEY_CLIENTID + "=" + rowId, null) > 0;
+        checkNotMainThread("deleteClient");
+        long start = Metrics.start();
+        try {
+            MaturityIndex index = null;
+            mDb.beginTransaction();
+            try {
+                long[] loanIds = fetchIndexedLoans(rowId);
+                // loans, payments, photo and search index entry go with it (see
+                // DATABASE_CREATE_CLIENTS_CASCADE_DELETE)
+                boolean deleted = execute(SQL_DELETE_CLIENT, rowId) > 0;
+                mDb.setTransactionSuccessful();
+                if (loanIds != null && mShared.mMaturityIndex != null) {
+                    index = mShared.mMaturityIndex;
+                    for (long loanId : loanIds) {
+                        index.remove(loanId);
+                    }
+                }
+                return deleted;
+            }
+            finally {
+                endIndexTransaction(index);
+            }
+        }
+        finally {
+            TIMER_DELETE_CLIENT.stop(start);
+        }
+    }
+
+    /**
+     * Delete many clients (and everything that belongs to them) in a single
+     * transaction
+     *
+     * @param rowIds ids of the clients to delete
+     * @return the number of clients deleted
+     */
+    public int deleteClients(long[] rowIds) {
+        checkNotMainThread("deleteClients");
+        long start = Metrics.start();
+        try {
+            int deleted = 0;
+            long[][] loanIds = new long[rowIds.length][];
+            MaturityIndex index = null;
+            mDb.beginTransaction();
+            try {
+                for (int i = 0; i < rowIds.length; i++) {
+                    loanIds[i] = fetchIndexedLoans(rowIds[i]);
+                    deleted += execute(SQL_DELETE_CLIENT, rowIds[i]);
+                }
+                mDb.setTransactionSuccessful();
+                if (mShared.mMaturityIndex != null) {
+                    index = mShared.mMaturityIndex;
+                    for (long[] clientLoanIds : loanIds) {
+                        for (long loanId : clientLoanIds) {
+                            index.remove(loanId);
+                        }
+                    }
+                }
+                return deleted;
+            }
+            finally {
+                endIndexTransaction(index);
+            }
+        }
+        finally {
+            TIMER_DELETE_CLIENTS.stop(start);
+        }
     }
 
     /**
@@ -174,9 +1302,203 @@ public class LoanSharkrDbAdapter {
      * @return Cursor over all clients
      */
     public Cursor fetchAllClients() {
+        checkNotMainThread("fetchAllClients");
+        long start = Metrics.start();
+        try {
+            return mDb.query(DATABASE_TABLE_CLIENTS, new String[] {KEY_ROWID, KEY_CLIENT,
+                    KEY_PHONE, KEY_NOTES, KEY_PHOTOVERSION}, null, null, null, null, null);
+        }
+        finally {
+            TIMER_FETCH_ALL_CLIENTS.stop(start);
+        }
+    }
+
+    /**
+     * Return a Cursor over the list of all clients in the database along with
+     * the summary of their loans (KEY_OPENLOANCOUNT, KEY_EARLIESTMATURITY,
+     * KEY_HASOVERDUE, KEY_PRINCIPALOUTSTANDING, KEY_PROJECTEDREPAYMENT,
+     * KEY_BADLOANCOUNT and KEY_PAIDLOANCOUNT) which is read from the client
+     * summary table rather than computed from the loans
+     *
+     * @param overdueThreshold open loans maturing on or before this date are
+     * overdue (see LoanMath.OverdueThreshold)
+     * @return Cursor over all clients
+     */
+    public Cursor fetchAllClientsWithLoanSummary(long overdueThreshold) {
+        checkNotMainThread("fetchAllClientsWithLoanSummary");
+        long start = Metrics.start();
+        try {
+            // the threshold is a long so it is safe to inline, binding it as a
+            // string would compare it as text against the integer column
+            return mDb.rawQuery("SELECT " + clientSummaryColumns(overdueThreshold)
+                    + " FROM " + DATABASE_TABLE_CLIENTS + " c JOIN " + DATABASE_TABLE_SUMMARY + " s ON s."
+                    + KEY_CLIENTID + " = c." + KEY_ROWID, null);
+        }
+        finally {
+            TIMER_FETCH_ALL_CLIENTS_WITH_LOAN_SUMMARY.stop(start);
+        }
+    }
+
+    /**
+     * Return a page of clients along with the same summary of their loans
+     * as fetchAllClientsWithLoanSummary. Pages are found by seeking
+     * past the last row of the previous page rather than with an OFFSET, so
+     * every page costs the same however far into the list it is.
+     *
+     * @param overdueThreshold open loans maturing on or before this date are
+     * overdue (see LoanMath.OverdueThreshold)
+     * @param sortOrder SORT_BY_NAME, SORT_BY_ID or SORT_BY_MATURITY (earliest
+     * open loan maturity, clients with no open loans last)
+     * @param after the key of the last row of the previous page (see
+     * PageKey.lastClient) or null for the first page
+     * @param limit the maximum number of rows in the page
+     * @return Cursor over the page
+     */
+    public Cursor fetchClientsPage(long overdueThreshold, int sortOrder, PageKey after, int limit) {
+        checkNotMainThread("fetchClientsPage");
+        long start = Metrics.start();
+        try {
+            String where = "";
+            String orderBy;
+            String[] args = null;
+            // the keyset conditions are written as "key >= last AND (key > last
+            // OR _id > last _id)" so that SQLite can seek on the first term
+            switch (sortOrder) {
+            case SORT_BY_NAME:
+                if (after != null) {
+                    where = " WHERE c." + KEY_CLIENT + " >= ? AND (c." + KEY_CLIENT + " > ? OR c."
+                            + KEY_ROWID + " > " + after.mRowId + ")";
+                    args = new String[] {after.mName, after.mName};
+                }
+                orderBy = "c." + KEY_CLIENT + ", c." + KEY_ROWID;
+                break;
+            case SORT_BY_MATURITY:
+                // PageKey.lastClient gives NO_MATURITY for clients with no open
+                // loans, which is what the summary holds for them
+                if (after != null) {
+                    where = " WHERE s." + KEY_EARLIESTMATURITY + " >= " + after.mMaturity + " AND (s."
+                            + KEY_EARLIESTMATURITY + " > " + after.mMaturity + " OR s." + KEY_CLIENTID
+                            + " > " + after.mRowId + ")";
+                }
+                orderBy = "s." + KEY_EARLIESTMATURITY + ", s." + KEY_CLIENTID;
+                break;
+            default:
+                if (after != null) {
+                    where = " WHERE c." + KEY_ROWID + " > " + after.mRowId;
+                }
+                orderBy = "c." + KEY_ROWID;
+                break;
+            }
+            return mDb.rawQuery("SELECT " + clientSummaryColumns(overdueThreshold)
+                    + " FROM " + DATABASE_TABLE_CLIENTS + " c JOIN " + DATABASE_TABLE_SUMMARY + " s ON s."
+                    + KEY_CLIENTID + " = c." + KEY_ROWID
+                    + where
+                    + " ORDER BY " + orderBy
+                    + " LIMIT " + limit, args);
+        }
+        finally {
+            TIMER_FETCH_CLIENTS_PAGE.stop(start);
+        }
+    }
 
-        return mDb.query(DATABASE_TABLE_CLIENTS, new String[] {KEY_ROWID, KEY_CLIENT,
-                KEY_PHONE, KEY_NOTES, KEY_PHOTO}, null, null, null, null, null);
+    /**
+     * The columns of a client c along with the summary s of their loans
+     *
+     * @param overdueThreshold open loans maturing on or before this date are
+     * overdue
+     * @return the select list
+     */
+    private static String clientSummaryColumns(long overdueThreshold) {
+        return "c." + KEY_ROWID + ", c." + KEY_CLIENT + ", c." + KEY_PHONE
+                + ", c." + KEY_NOTES + ", c." + KEY_PHOTOVERSION
+                + ", s." + KEY_OPENLOANCOUNT
+                + ", NULLIF(s." + KEY_EARLIESTMATURITY + ", " + NO_MATURITY + ") AS " + KEY_EARLIESTMATURITY
+                + ", s." + KEY_EARLIESTMATURITY + " <= " + overdueThreshold + " AS " + KEY_HASOVERDUE
+                + ", s." + KEY_PRINCIPALOUTSTANDING + ", s." + KEY_PROJECTEDREPAYMENT
+                + ", s." + KEY_BADLOANCOUNT + ", s." + KEY_PAIDLOANCOUNT;
+    }
+
+    /**
+     * Search for clients whose name, phone or notes contain words starting
+     * with each of the words in the query, using the full text index. Clients
+     * whose name matches are ranked first, then results are ordered by name.
+     * The columns are the same as those of fetchClientsPage.
+     *
+     * @param query the text typed by the user
+     * @param overdueThreshold open loans maturing on or before this date are
+     * overdue (see LoanMath.OverdueThreshold)
+     * @param limit the maximum number of clients to return
+     * @return Cursor over the matching clients, or null if the query has no
+     * words to search for
+     */
+    public Cursor searchClients(String query, long overdueThreshold, int limit) {
+        checkNotMainThread("searchClients");
+        long start = Metrics.start();
+        try {
+            String anyColumn = buildPrefixQuery(query, null);
+            if (anyColumn == null) {
+                return null;
+            }
+            String nameColumn = buildPrefixQuery(query, KEY_CLIENT);
+            return mDb.rawQuery("SELECT " + clientSummaryColumns(overdueThreshold)
+                    + " FROM (SELECT id, MIN(rank) AS rank FROM ("
+                    + "SELECT rowid AS id, 0 AS rank FROM " + DATABASE_TABLE_CLIENTS_FTS
+                    + " WHERE " + DATABASE_TABLE_CLIENTS_FTS + " MATCH ?"
+                    + " UNION ALL SELECT rowid AS id, 1 AS rank FROM " + DATABASE_TABLE_CLIENTS_FTS
+                    + " WHERE " + DATABASE_TABLE_CLIENTS_FTS + " MATCH ?"
+                    + ") GROUP BY id) m"
+                    + " JOIN " + DATABASE_TABLE_CLIENTS + " c ON c." + KEY_ROWID + " = m.id"
+                    + " JOIN " + DATABASE_TABLE_SUMMARY + " s ON s." + KEY_CLIENTID + " = c." + KEY_ROWID
+                    + " ORDER BY m.rank, c." + KEY_CLIENT + ", c." + KEY_ROWID
+                    + " LIMIT " + limit, new String[] {nameColumn, anyColumn});
+        }
+        finally {
+            TIMER_SEARCH_CLIENTS.stop(start);
+        }
+    }
+
+    /**
+     * @param text the text typed by the user
+     * @return true if the text has words to search for, ie searchClients
+     * will not return null for it
+     */
+    public static boolean isSearchable(String text) {
+        return buildPrefixQuery(text, null) != null;
+    }
+
+    /**
+     * Turn the text typed by the user into an FTS query that matches rows
+     * containing a word starting with each word of the text. Anything other
+     * than letters and digits separates words, so FTS operators cannot be
+     * typed.
+     *
+     * @param text the text to search for
+     * @param column the column to search, or null for all columns
+     * @return the query or null if the text contains no words
+     */
+    private static String buildPrefixQuery(String text, String column) {
+        StringBuilder query = new StringBuilder();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                if (query.length() > 0) {
+                    query.append(' ');
+                }
+                if (column != null) {
+                    query.append(column).append(':');
+                }
+                query.append(text, start, i).append('*');
+            }
+        }
+        return query.length() > 0 ? query.toString() : null;
     }
 
     /**
@@ -187,15 +1509,18 @@ public class LoanSharkrDbAdapter {
      * @throws SQLException if client could not be found/retrieved
      */
     public Cursor fetchClient(long rowId) throws SQLException {
-        Cursor mCursor =
-            mDb.query(true, DATABASE_TABLE_CLIENTS, new String[] {KEY_ROWID,
-                    KEY_CLIENT, KEY_PHONE, KEY_NOTES, KEY_PHOTO}, KEY_ROWID + "=" + rowId, null,
-                    null, null, null, null);
-        if (mCursor != null) {
-            mCursor.moveToFirst();
+        checkNotMainThread("fetchClient");
+        long start = Metrics.start();
+        try {
+            Cursor mCursor = mDb.rawQuery(SQL_FETCH_CLIENT, new String[] {Long.toString(rowId)});
+            if (mCursor != null) {
+                mCursor.moveToFirst();
+            }
+            return mCursor;
+        }
+        finally {
+            TIMER_FETCH_CLIENT.stop(start);
         }
-        return mCursor;
-
     }
 
     /**
@@ -206,20 +1531,33 @@ public class LoanSharkrDbAdapter {
      * @param rowId id of client to update
      * @param title value to set client name to
      * @param body value to set client notes to
+     * @param photo a new picture of the client as JPEG data (see
+     * PhotoEncoder), or null to keep the current one
      * @return true if the client was successfully updated, false otherwise
      */
-    public boolean updateClient(long rowId, String client, String phone, String notes, Bitmap photo) {
-        ContentValues args = new ContentValues();
-        args.put(KEY_CLIENT, client);
-        args.put(KEY_PHONE, phone);
-        args.put(KEY_NOTES, notes);
-        if (photo != null) {
-            ByteArrayOutputStream s = new ByteArrayOutputStream();
-            photo.compress(CompressFormat.JPEG, JPEG_QUALITY, s);
-            args.put(KEY_PHOTO, s.toByteArray());
+    public boolean updateClient(long rowId, String client, String phone, String notes, byte[] photo) {
+        checkNotMainThread("updateClient");
+        long start = Metrics.start();
+        try {
+            mDb.beginTransaction();
+            try {
+                // a client that cannot be indexed or whose photo cannot be
+                // saved is rolled back rather than left half updated
+                if (execute(SQL_UPDATE_CLIENT, client, phone, notes, rowId) == 0
+                        || !indexClient(rowId, client, phone, notes)
+                        || (photo != null && !storePhoto(rowId, photo))) {
+                    return false;
+                }
+                mDb.setTransactionSuccessful();
+                return true;
+            }
+            finally {
+                mDb.endTransaction();
+            }
+        }
+        finally {
+            TIMER_UPDATE_CLIENT.stop(start);
         }
-
-        return mDb.update(DATABASE_TABLE_CLIENTS, args, KEY_ROWID + "=" + rowId, null) > 0;
     }
 
     /**
@@ -232,17 +1570,57 @@ public class LoanSharkrDbAdapter {
      * @throws SQLException if note could not be found/retrieved
      */
     public Cursor fetchAllLoansFromClient(Long clientId, boolean fetchClosed) {
-        String whereClause = KEY_CLIENTID + " = ?";
-        String[] whereArgs = new String[] {clientId.toString(), Long.toString(LOAN_STATUS_OPEN)};
-        if (fetchClosed) {
-            whereClause += " AND " + KEY_STATUS + " > ?";
+        checkNotMainThread("fetchAllLoansFromClient");
+        long start = Metrics.start();
+        try {
+            String whereClause = KEY_CLIENTID + " = ?";
+            String[] whereArgs = new String[] {clientId.toString(), Long.toString(LOAN_STATUS_OPEN)};
+            if (fetchClosed) {
+                whereClause += " AND " + KEY_STATUS + " > ?";
+            }
+            else {
+                whereClause += " AND " + KEY_STATUS + " = ?";
+            }
+            return mDb.query(DATABASE_TABLE_LOANS, new String[] {KEY_ROWID, KEY_DEBT, KEY_WEEKLYINTEREST, KEY_DATE, KEY_MATURITYDATE, KEY_STATUS,
+                    KEY_BALANCE, KEY_BALANCEDATE, KEY_TOTALREPAYMENT},
+                whereClause,
+                whereArgs, null, null, null);
         }
-        else {
-            whereClause += " AND " + KEY_STATUS + " = ?";
+        finally {
+            TIMER_FETCH_ALL_LOANS_FROM_CLIENT.stop(start);
+        }
+    }
+
+    /**
+     * Return a page of a client's loans ordered by maturity date (see
+     * fetchClientsPage)
+     *
+     * @param clientId id of client query
+     * @param fetchClosed if false return only LOAN_STATUS_OPEN loans,
+     * if true then return LOAN_STATUS_PAID and LOAN_STATUS_BAD loans
+     * @param after the key of the last row of the previous page (see
+     * PageKey.lastLoan) or null for the first page
+     * @param limit the maximum number of rows in the page
+     * @return Cursor over the page
+     */
+    public Cursor fetchLoansPage(long clientId, boolean fetchClosed, PageKey after, int limit) {
+        checkNotMainThread("fetchLoansPage");
+        long start = Metrics.start();
+        try {
+            String whereClause = KEY_CLIENTID + " = " + clientId + " AND " + KEY_STATUS
+                    + (fetchClosed ? " > " : " = ") + LOAN_STATUS_OPEN;
+            if (after != null) {
+                whereClause += " AND " + KEY_MATURITYDATE + " >= " + after.mMaturity + " AND ("
+                        + KEY_MATURITYDATE + " > " + after.mMaturity + " OR " + KEY_ROWID + " > "
+                        + after.mRowId + ")";
+            }
+            return mDb.query(DATABASE_TABLE_LOANS, new String[] {KEY_ROWID, KEY_DEBT, KEY_WEEKLYINTEREST, KEY_DATE, KEY_MATURITYDATE, KEY_STATUS,
+                    KEY_BALANCE, KEY_BALANCEDATE, KEY_TOTALREPAYMENT},
+                whereClause, null, null, null, KEY_MATURITYDATE + ", " + KEY_ROWID, Integer.toString(limit));
+        }
+        finally {
+            TIMER_FETCH_LOANS_PAGE.stop(start);
         }
-        return mDb.query(DATABASE_TABLE_LOANS, new String[] {KEY_ROWID, KEY_DEBT, KEY_WEEKLYINTEREST, KEY_DATE, KEY_MATURITYDATE, KEY_STATUS},
-            whereClause,
-            whereArgs, null, null, null);
     }
 
     /**
@@ -260,14 +1638,48 @@ public class LoanSharkrDbAdapter {
      * @return rowId or -1 if failed
      */
     public long createClientLoan(Long mClientId, BigDecimal debt, BigDecimal weekly_interest, long date, long maturity_date) {
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_CLIENTID, mClientId);
-        initialValues.put(KEY_DEBT, LoanHelper.ConvertCurrencyToInteger(debt));
-        initialValues.put(KEY_WEEKLYINTEREST, LoanHelper.ConvertCurrencyToInteger(weekly_interest));
-        initialValues.put(KEY_DATE, date);
-        initialValues.put(KEY_MATURITYDATE, maturity_date);
-        initialValues.put(KEY_STATUS, LOAN_STATUS_OPEN);
-        return mDb.insert(DATABASE_TABLE_LOANS, null, initialValues);
+        return createClientLoan(mClientId, LoanMath.ConvertCurrencyToInteger(debt),
+                LoanMath.ConvertCurrencyToInteger(weekly_interest), date, maturity_date);
+    }
+
+    /**
+     * Create a new client loan using fixed point values (see Money).
+     * If successfully created return the new rowId for that loan, otherwise return
+     * a -1 to indicate failure.
+     *
+     * @param mClientId the client id of the loanee
+     * @param debt the value of the debt in cents
+     * @param weekly_interest the weekly_interest rate in hundredths of a percent
+     * @param date the starting date of the loan
+     * @param maturity_date the date the debt is due
+     * @return rowId or -1 if failed
+     */
+    public long createClientLoan(Long mClientId, long debt, long weekly_interest, long date, long maturity_date) {
+        checkNotMainThread("createClientLoan");
+        long start = Metrics.start();
+        try {
+            MaturityIndex index = null;
+            mDb.beginTransaction();
+            try {
+                long rowId = insert(SQL_INSERT_LOAN, mClientId, debt, weekly_interest, date, maturity_date,
+                        LOAN_STATUS_OPEN, debt, date, totalRepayment(date, maturity_date, debt, weekly_interest));
+                if (rowId == -1) {
+                    return -1;
+                }
+                mDb.setTransactionSuccessful();
+                if (mShared.mMaturityIndex != null) {
+                    index = mShared.mMaturityIndex;
+                    index.put(rowId, maturity_date);
+                }
+                return rowId;
+            }
+            finally {
+                endIndexTransaction(index);
+            }
+        }
+        finally {
+            TIMER_CREATE_CLIENT_LOAN.stop(start);
+        }
     }
 
     /**
@@ -277,7 +1689,28 @@ public class LoanSharkrDbAdapter {
      * @return true if deleted, false otherwise
      */
     public boolean deleteLoan(long rowId) {
-        return mDb.delete(DATABASE_TABLE_LOANS, KEY_ROWID + "=" + rowId, null) > 0;
+        checkNotMainThread("deleteLoan");
+        long start = Metrics.start();
+        try {
+            MaturityIndex index = null;
+            mDb.beginTransaction();
+            try {
+                // its payments go with it (see DATABASE_CREATE_LOANS_CASCADE_DELETE)
+                boolean deleted = execute(SQL_DELETE_LOAN, rowId) > 0;
+                mDb.setTransactionSuccessful();
+                if (deleted && mShared.mMaturityIndex != null) {
+                    index = mShared.mMaturityIndex;
+                    index.remove(rowId);
+                }
+                return deleted;
+            }
+            finally {
+                endIndexTransaction(index);
+            }
+        }
+        finally {
+            TIMER_DELETE_LOAN.stop(start);
+        }
     }
 
     /**
@@ -288,14 +1721,18 @@ public class LoanSharkrDbAdapter {
      * @throws SQLException if loan could not be found/retrieved
      */
 	public Cursor fetchClientLoan(long rowId) throws SQLException {
-        Cursor mCursor =
-            mDb.query(true, DATABASE_TABLE_LOANS, new String[] {KEY_ROWID,
-                    KEY_CLIENTID, KEY_DEBT, KEY_WEEKLYINTEREST, KEY_DATE, KEY_MATURITYDATE, KEY_STATUS}, KEY_ROWID + "=" + rowId, null,
-                    null, null, null, null);
-        if (mCursor != null) {
-            mCursor.moveToFirst();
+        checkNotMainThread("fetchClientLoan");
+        long start = Metrics.start();
+        try {
+            Cursor mCursor = mDb.rawQuery(SQL_FETCH_LOAN, new String[] {Long.toString(rowId)});
+            if (mCursor != null) {
+                mCursor.moveToFirst();
+            }
+            return mCursor;
+        }
+        finally {
+            TIMER_FETCH_CLIENT_LOAN.stop(start);
         }
-        return mCursor;
     }
 
     /**
@@ -309,11 +1746,538 @@ public class LoanSharkrDbAdapter {
      * @return true if the client was successfully updated, false otherwise
      */
     public boolean updateClientLoan(long rowId, BigDecimal debt, BigDecimal weekly_interest, long maturity_date, long status) {
-        ContentValues args = new ContentValues();
-        args.put(KEY_DEBT, LoanHelper.ConvertCurrencyToInteger(debt));
-        args.put(KEY_WEEKLYINTEREST, LoanHelper.ConvertCurrencyToInteger(weekly_interest));
-        args.put(KEY_MATURITYDATE, maturity_date);
-        args.put(KEY_STATUS, status);
-        return mDb.update(DATABASE_TABLE_LOANS, args, KEY_ROWID + "=" + rowId, null) > 0;
+        return updateClientLoan(rowId, LoanMath.ConvertCurrencyToInteger(debt),
+                LoanMath.ConvertCurrencyToInteger(weekly_interest), maturity_date, status);
+    }
+
+    /**
+     * Update the loan using fixed point values (see Money).
+     *
+     * @param rowId id of client to update
+     * @param debt value to set loan debt in cents
+     * @param weekly_interest value to set the loan weekly interest to in hundredths of a percent
+     * @param maturity_date value to set the loan maturity date
+     * @return true if the client was successfully updated, false otherwise
+     */
+    public boolean updateClientLoan(long rowId, long debt, long weekly_interest, long maturity_date, long status) {
+        checkNotMainThread("updateClientLoan");
+        long start = Metrics.start();
+        try {
+            MaturityIndex index = null;
+            mDb.beginTransaction();
+            try {
+                boolean updated = execute(SQL_UPDATE_LOAN, debt, weekly_interest, maturity_date, status, rowId) > 0;
+                if (updated) {
+                    // the debt, interest rate or maturity date may have
+                    // changed, which also sets the total repayment
+                    replayPayments(rowId);
+                }
+                mDb.setTransactionSuccessful();
+                if (updated && mShared.mMaturityIndex != null) {
+                    index = mShared.mMaturityIndex;
+                    if (status == LOAN_STATUS_OPEN) {
+                        index.put(rowId, maturity_date);
+                    }
+                    else {
+                        index.remove(rowId);
+                    }
+                }
+                return updated;
+            }
+            finally {
+                endIndexTransaction(index);
+            }
+        }
+        finally {
+            TIMER_UPDATE_CLIENT_LOAN.stop(start);
+        }
+    }
+
+    /**
+     * Return a Cursor over every client joined with its loans, for export.
+     * Each row has the client (KEY_CLIENTID, KEY_CLIENT, KEY_PHONE,
+     * KEY_NOTES) and one of its loans (KEY_LOANID, KEY_DEBT,
+     * KEY_WEEKLYINTEREST, KEY_DATE, KEY_MATURITYDATE, KEY_STATUS,
+     * KEY_BALANCE, KEY_BALANCEDATE), a client with no loans has a single row
+     * with a null KEY_LOANID. The rows of a client are adjacent.
+     *
+     * The query needs no sort so it should be read forwards only, the rows
+     * are then fetched a window at a time however many there are.
+     *
+     * @return Cursor over the clients and loans
+     */
+    public Cursor fetchLedger() {
+        checkNotMainThread("fetchLedger");
+        long start = Metrics.start();
+        try {
+            return mDb.rawQuery("SELECT c." + KEY_ROWID + " AS " + KEY_CLIENTID + ", c." + KEY_CLIENT
+                    + ", c." + KEY_PHONE + ", c." + KEY_NOTES + ", l." + KEY_ROWID + " AS " + KEY_LOANID
+                    + ", l." + KEY_DEBT + ", l." + KEY_WEEKLYINTEREST + ", l." + KEY_DATE + ", l." + KEY_MATURITYDATE
+                    + ", l." + KEY_STATUS + ", l." + KEY_BALANCE + ", l." + KEY_BALANCEDATE
+                    + " FROM " + DATABASE_TABLE_CLIENTS + " c LEFT JOIN " + DATABASE_TABLE_LOANS + " l ON l."
+                    + KEY_CLIENTID + " = c." + KEY_ROWID + " ORDER BY c." + KEY_ROWID, null);
+        }
+        finally {
+            TIMER_FETCH_LEDGER.stop(start);
+        }
+    }
+
+    /**
+     * Return a Cursor with a single row of totals over all clients'
+     * summaries (KEY_OPENLOANCOUNT, KEY_PRINCIPALOUTSTANDING,
+     * KEY_PROJECTEDREPAYMENT, KEY_EARLIESTMATURITY, KEY_BADLOANCOUNT and
+     * KEY_PAIDLOANCOUNT). The projected repayment is Long.MAX_VALUE if it
+     * is too big to store.
+     *
+     * @return Cursor positioned at the totals
+     */
+    public Cursor fetchLoanTotals() {
+        checkNotMainThread("fetchLoanTotals");
+        long start = Metrics.start();
+        try {
+            Cursor c = mDb.rawQuery("SELECT IFNULL(SUM(" + KEY_OPENLOANCOUNT + "), 0) AS " + KEY_OPENLOANCOUNT
+                    + ", IFNULL(SUM(" + KEY_PRINCIPALOUTSTANDING + "), 0) AS " + KEY_PRINCIPALOUTSTANDING
+                    + ", " + saturatedSum(KEY_PROJECTEDREPAYMENT) + " AS " + KEY_PROJECTEDREPAYMENT
+                    + ", NULLIF(MIN(" + KEY_EARLIESTMATURITY + "), " + NO_MATURITY + ") AS " + KEY_EARLIESTMATURITY
+                    + ", IFNULL(SUM(" + KEY_BADLOANCOUNT + "), 0) AS " + KEY_BADLOANCOUNT
+                    + ", IFNULL(SUM(" + KEY_PAIDLOANCOUNT + "), 0) AS " + KEY_PAIDLOANCOUNT
+                    + " FROM " + DATABASE_TABLE_SUMMARY, null);
+            c.moveToFirst();
+            return c;
+        }
+        finally {
+            TIMER_FETCH_LOAN_TOTALS.stop(start);
+        }
+    }
+
+    /**
+     * Save the set of open loans that are overdue or due soon, replacing the
+     * previous set. The loans are found by a single range search of the
+     * status and maturity date index, so the time taken follows the number
+     * of due loans rather than the number of loans.
+     *
+     * @param overdueThreshold open loans maturing on or before this date are
+     * overdue (see LoanMath.OverdueThreshold)
+     * @param dueSoonThreshold open loans maturing on or before this date
+     * (and after overdueThreshold) are due soon
+     */
+    public void refreshDueLoans(long overdueThreshold, long dueSoonThreshold) {
+        checkNotMainThread("refreshDueLoans");
+        long start = Metrics.start();
+        try {
+            mDb.beginTransaction();
+            try {
+                mDb.execSQL("DELETE FROM " + DATABASE_TABLE_DUE_LOANS);
+                // the thresholds are longs so they are safe to inline
+                mDb.execSQL("INSERT INTO " + DATABASE_TABLE_DUE_LOANS + " (" + KEY_LOANID + ", " + KEY_CLIENTID
+                        + ", " + KEY_MATURITYDATE + ", overdue) SELECT " + KEY_ROWID + ", " + KEY_CLIENTID + ", "
+                        + KEY_MATURITYDATE + ", " + KEY_MATURITYDATE + " <= " + overdueThreshold + " FROM "
+                        + DATABASE_TABLE_LOANS + " WHERE " + KEY_STATUS + " = " + LOAN_STATUS_OPEN + " AND "
+                        + KEY_MATURITYDATE + " <= " + dueSoonThreshold);
+                mDb.setTransactionSuccessful();
+            }
+            finally {
+                mDb.endTransaction();
+            }
+        }
+        finally {
+            TIMER_REFRESH_DUE_LOANS.stop(start);
+        }
+    }
+
+    /**
+     * Return a Cursor with a single row counting the due loans saved by the
+     * last refreshDueLoans (KEY_OVERDUECOUNT and KEY_DUESOONCOUNT)
+     *
+     * @return Cursor positioned at the counts
+     */
+    public Cursor fetchDueLoanCounts() {
+        checkNotMainThread("fetchDueLoanCounts");
+        long start = Metrics.start();
+        try {
+            Cursor c = mDb.rawQuery("SELECT IFNULL(SUM(overdue), 0) AS " + KEY_OVERDUECOUNT
+                    + ", COUNT(*) - IFNULL(SUM(overdue), 0) AS " + KEY_DUESOONCOUNT
+                    + " FROM " + DATABASE_TABLE_DUE_LOANS, null);
+            c.moveToFirst();
+            return c;
+        }
+        finally {
+            TIMER_FETCH_DUE_LOAN_COUNTS.stop(start);
+        }
+    }
+
+    /**
+     * Check the client summary table against the loans it summarises, which
+     * reads every loan. The summary should never be out of step since it is
+     * updated in the same transactions as the loans.
+     *
+     * @param repair rebuild the summary if it is found to be inconsistent
+     * @return the number of summary rows that are wrong, missing or extra
+     */
+    public int checkClientSummary(boolean repair) {
+        checkNotMainThread("checkClientSummary");
+        long start = Metrics.start();
+        try {
+            mDb.beginTransaction();
+            try {
+                mDb.execSQL("CREATE TEMP TABLE " + DATABASE_TABLE_SUMMARY_CHECK + " AS SELECT * FROM "
+                        + DATABASE_TABLE_SUMMARY + " WHERE 0");
+                fillClientSummary(mDb, DATABASE_TABLE_SUMMARY_CHECK, KEY_TOTALREPAYMENT);
+                // rows that are wrong or missing, then rows for clients that no
+                // longer exist
+                Cursor c = mDb.rawQuery("SELECT (SELECT COUNT(*) FROM (SELECT * FROM " + DATABASE_TABLE_SUMMARY_CHECK
+                        + " EXCEPT SELECT * FROM " + DATABASE_TABLE_SUMMARY + ")) + (SELECT COUNT(*) FROM "
+                        + DATABASE_TABLE_SUMMARY + " WHERE " + KEY_CLIENTID + " NOT IN (SELECT " + KEY_CLIENTID
+                        + " FROM " + DATABASE_TABLE_SUMMARY_CHECK + "))", null);
+                int wrong;
+                try {
+                    c.moveToFirst();
+                    wrong = c.getInt(0);
+                }
+                finally {
+                    c.close();
+                }
+                if (wrong > 0) {
+                    Log.w(TAG, "Client summary has " + wrong + " inconsistent rows");
+                    if (repair) {
+                        mDb.execSQL("DELETE FROM " + DATABASE_TABLE_SUMMARY);
+                        mDb.execSQL("INSERT INTO " + DATABASE_TABLE_SUMMARY + " SELECT * FROM "
+                                + DATABASE_TABLE_SUMMARY_CHECK);
+                    }
+                }
+                mDb.execSQL("DROP TABLE " + DATABASE_TABLE_SUMMARY_CHECK);
+                mDb.setTransactionSuccessful();
+                return wrong;
+            }
+            finally {
+                mDb.endTransaction();
+            }
+        }
+        finally {
+            TIMER_CHECK_CLIENT_SUMMARY.stop(start);
+        }
+    }
+
+    /**
+     * Record a payment against a loan. The loan's balance checkpoint is
+     * moved forward to the payment, or if the payment is dated before the
+     * checkpoint the balance is worked out again from the start of the loan.
+     *
+     * @param loanId id of the loan
+     * @param amount the amount paid in cents
+     * @param date the date of the payment
+     * @return rowId of the payment or -1 if failed
+     */
+    public long recordPayment(long loanId, long amount, long date) {
+        checkNotMainThread("recordPayment");
+        long start = Metrics.start();
+        try {
+            mDb.beginTransaction();
+            try {
+                Cursor c = mDb.rawQuery(SQL_FETCH_LOAN_BALANCE, new String[] {Long.toString(loanId)});
+                try {
+                    if (!c.moveToFirst()) {
+                        return -1;
+                    }
+                    long rowId = insert(SQL_INSERT_PAYMENT, loanId, amount, date);
+                    if (rowId == -1) {
+                        return -1;
+                    }
+
+                    long balanceDate = c.getLong(0);
+                    if (date >= balanceDate) {
+                        long maturityDate = c.getLong(1);
+                        long weeklyInterest = c.getLong(3);
+                        long balance = accrue(balanceDate, date, c.getLong(2), weeklyInterest) - amount;
+                        execute(SQL_UPDATE_LOAN_BALANCE, balance, date,
+                                totalRepayment(date, maturityDate, balance, weeklyInterest), loanId);
+                    }
+                    else {
+                        replayPayments(loanId);
+                    }
+                    mDb.setTransactionSuccessful();
+                    return rowId;
+                }
+                finally {
+                    c.close();
+                }
+            }
+            finally {
+                mDb.endTransaction();
+            }
+        }
+        finally {
+            TIMER_RECORD_PAYMENT.stop(start);
+        }
+    }
+
+    /**
+     * Record a payment against a loan
+     *
+     * @param loanId id of the loan
+     * @param amount the amount paid
+     * @param date the date of the payment
+     * @return rowId of the payment or -1 if failed
+     */
+    public long recordPayment(long loanId, BigDecimal amount, long date) {
+        return recordPayment(loanId, LoanMath.ConvertCurrencyToInteger(amount), date);
+    }
+
+    /**
+     * Return a Cursor over the payments made against a loan in date order
+     *
+     * @param loanId id of the loan
+     * @return Cursor over the payments
+     */
+    public Cursor fetchPayments(long loanId) {
+        checkNotMainThread("fetchPayments");
+        long start = Metrics.start();
+        try {
+            return mDb.query(DATABASE_TABLE_PAYMENTS, new String[] {KEY_ROWID, KEY_LOANID, KEY_AMOUNT, KEY_DATE},
+                    KEY_LOANID + "=" + loanId, null, null, null, KEY_DATE + ", " + KEY_ROWID);
+        }
+        finally {
+            TIMER_FETCH_PAYMENTS.stop(start);
+        }
+    }
+
+    /**
+     * Work out a loan's balance checkpoint (and so its total repayment)
+     * again from the start of the loan by applying each of its payments in
+     * turn
+     *
+     * @param loanId id of the loan
+     */
+    private void replayPayments(long loanId) {
+        Cursor loan = mDb.rawQuery(SQL_FETCH_LOAN, new String[] {Long.toString(loanId)});
+        long balance;
+        long balanceDate;
+        long weeklyInterest;
+        long maturityDate;
+        try {
+            if (!loan.moveToFirst()) {
+                return;
+            }
+            balance = loan.getLong(2);
+            balanceDate = loan.getLong(4);
+            weeklyInterest = loan.getLong(3);
+            maturityDate = loan.getLong(5);
+        }
+        finally {
+            loan.close();
+        }
+
+        Cursor payments = mDb.rawQuery(SQL_FETCH_PAYMENT_HISTORY, new String[] {Long.toString(loanId)});
+        try {
+            while (payments.moveToNext()) {
+                long date = payments.getLong(1);
+                // a payment made before the loan started earns no interest
+                balance = accrue(balanceDate, date, balance, weeklyInterest) - payments.getLong(0);
+                balanceDate = Math.max(balanceDate, date);
+            }
+        }
+        finally {
+            payments.close();
+        }
+
+        execute(SQL_UPDATE_LOAN_BALANCE, balance, balanceDate,
+                totalRepayment(balanceDate, maturityDate, balance, weeklyInterest), loanId);
+    }
+
+    /**
+     * Start inserting clients and loans in bulk, see BulkInserter
+     *
+     * @param batchSize the number of rows to insert in each transaction
+     * @return the inserter, which must be closed
+     */
+    public BulkInserter beginBulkInsert(int batchSize) {
+        return beginBulkInsert(batchSize, false);
+    }
+
+    /**
+     * Start inserting clients and loans in bulk, see BulkInserter
+     *
+     * @param batchSize the number of rows to insert in each transaction
+     * @param large true to drop the loans status index until the inserter
+     * is closed, which is worth it when the rows inserted are many compared
+     * to the loans already stored (queries by status are slower meanwhile)
+     * @return the inserter, which must be closed
+     */
+    public BulkInserter beginBulkInsert(int batchSize, boolean large) {
+        checkNotMainThread("beginBulkInsert");
+        long start = Metrics.start();
+        try {
+            return new BulkInserter(batchSize, large);
+        }
+        finally {
+            TIMER_BEGIN_BULK_INSERT.stop(start);
+        }
+    }
+
+    /**
+     * Inserts clients and loans in batched transactions using precompiled
+     * statements. Rows are committed every batchSize inserts and when the
+     * inserter is closed. A row that fails to insert does not affect the
+     * rest of its batch.
+     *
+     * Must be used from a single thread.
+     */
+    public class BulkInserter {
+        private final int mBatchSize;
+        private final boolean mLarge;
+        private final SQLiteStatement mInsertClient;
+        private final SQLiteStatement mIndexClient;
+        private final SQLiteStatement mDeleteClient;
+        private final SQLiteStatement mInsertLoan;
+        private int mBatchCount;
+        // open loans of the batch, added to the maturity index (if built)
+        // when the batch commits
+        private long[] mIndexedLoans = new long[16];
+        private long[] mIndexedMaturities = new long[16];
+        private int mIndexedCount;
+
+        private BulkInserter(int batchSize, boolean large) {
+            mBatchSize = batchSize;
+            mLarge = large;
+            // its own copies, used by one thread and without the locking
+            mInsertClient = mDb.compileStatement(SQL_INSERT_CLIENT);
+            mIndexClient = mDb.compileStatement(SQL_INSERT_CLIENT_FTS);
+            mDeleteClient = mDb.compileStatement(SQL_DELETE_CLIENT);
+            mInsertLoan = mDb.compileStatement(SQL_INSERT_LOAN);
+            mDb.beginTransaction();
+            if (large) {
+                mDb.execSQL(DATABASE_DROP_LOANS_STATUS_INDEX);
+            }
+        }
+
+        /**
+         * Insert a client
+         *
+         * @param client the name of the client
+         * @param phone the client's phone number
+         * @param notes the notes about the client
+         * @return rowId of the client
+         * @throws SQLException if the client could not be inserted, or could
+         * not be added to the search index (when it is not inserted either)
+         */
+        public long insertClient(String client, String phone, String notes) {
+            mInsertClient.bindString(1, client);
+            mInsertClient.bindString(2, phone);
+            mInsertClient.bindString(3, notes);
+            long rowId = mInsertClient.executeInsert();
+            mIndexClient.bindLong(1, rowId);
+            mIndexClient.bindString(2, client);
+            mIndexClient.bindString(3, phone);
+            mIndexClient.bindString(4, notes);
+            try {
+                mIndexClient.executeInsert();
+            }
+            catch (SQLException e) {
+                // the batch is still committed, so take the client out again
+                // rather than keep one that search cannot find
+                mDeleteClient.bindLong(1, rowId);
+                mDeleteClient.execute();
+                throw e;
+            }
+            rowInserted();
+            return rowId;
+        }
+
+        /**
+         * Insert a loan (with no payments)
+         *
+         * @param clientId id of the client
+         * @param debt the size of the loan in cents
+         * @param weeklyInterest the weekly interest rate in hundredths of a percent
+         * @param date the starting date of the loan
+         * @param maturityDate the maturity date of the loan
+         * @param status LOAN_STATUS_OPEN, LOAN_STATUS_PAID or LOAN_STATUS_BAD
+         * @return rowId of the loan
+         * @throws SQLException if the loan could not be inserted
+         */
+        public long insertLoan(long clientId, long debt, long weeklyInterest, long date, long maturityDate,
+                int status) {
+            mInsertLoan.bindLong(1, clientId);
+            mInsertLoan.bindLong(2, debt);
+            mInsertLoan.bindLong(3, weeklyInterest);
+            mInsertLoan.bindLong(4, date);
+            mInsertLoan.bindLong(5, maturityDate);
+            mInsertLoan.bindLong(6, status);
+            mInsertLoan.bindLong(7, debt);
+            mInsertLoan.bindLong(8, date);
+            mInsertLoan.bindLong(9, totalRepayment(date, maturityDate, debt, weeklyInterest));
+            long rowId = mInsertLoan.executeInsert();
+            if (status == LOAN_STATUS_OPEN && mShared.mMaturityIndex != null) {
+                if (mIndexedCount == mIndexedLoans.length) {
+                    long[] loans = new long[mIndexedCount * 2];
+                    long[] maturities = new long[mIndexedCount * 2];
+                    System.arraycopy(mIndexedLoans, 0, loans, 0, mIndexedCount);
+                    System.arraycopy(mIndexedMaturities, 0, maturities, 0, mIndexedCount);
+                    mIndexedLoans = loans;
+                    mIndexedMaturities = maturities;
+                }
+                mIndexedLoans[mIndexedCount] = rowId;
+                mIndexedMaturities[mIndexedCount] = maturityDate;
+                mIndexedCount++;
+            }
+            rowInserted();
+            return rowId;
+        }
+
+        /**
+         * Commit the rows inserted so far and start a new batch
+         */
+        public void commit() {
+            mDb.setTransactionSuccessful();
+            endIndexTransaction(indexBatch());
+            mBatchCount = 0;
+            mDb.beginTransaction();
+        }
+
+        /**
+         * Commit the rows inserted so far and release the statements
+         */
+        public void close() {
+            MaturityIndex index = null;
+            try {
+                mDb.setTransactionSuccessful();
+                index = indexBatch();
+            }
+            finally {
+                endIndexTransaction(index);
+                mInsertClient.close();
+                mIndexClient.close();
+                mDeleteClient.close();
+                mInsertLoan.close();
+            }
+            if (mLarge) {
+                mDb.execSQL(DATABASE_RESTORE_LOANS_STATUS_INDEX);
+            }
+        }
+
+        /**
+         * Add the batch's open loans to the maturity index, once the batch
+         * is marked successful
+         *
+         * @return the index if it was changed, otherwise null
+         */
+        private MaturityIndex indexBatch() {
+            MaturityIndex index = mShared.mMaturityIndex;
+            int count = mIndexedCount;
+            mIndexedCount = 0;
+            if (index == null || count == 0) {
+                return null;
+            }
+            for (int i = 0; i < count; i++) {
+                index.put(mIndexedLoans[i], mIndexedMaturities[i]);
+            }
+            return index;
+        }
+
+        private void rowInserted() {
+            if (++mBatchCount >= mBatchSize) {
+                commit();
+            }
+        }
     }
 }
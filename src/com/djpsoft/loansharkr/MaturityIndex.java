@@ -0,0 +1,328 @@
+package com.djpsoft.loansharkr;
+
+import java.util.TimeZone;
+
+/**
+ * An in-memory index of the open loans by the day they mature, so that the
+ * loans that are overdue or due today or this week can be found without a
+ * query. See LoanSharkrDbAdapter.getMaturityIndex, which builds it and keeps
+ * it up to date.
+ *
+ * Loans are kept in a calendar wheel: one bucket for each of the WHEEL_DAYS
+ * days starting today, one for every loan that matured before today and one
+ * for every loan that matures after the wheel. The wheel is turned as the
+ * days pass. A hash table (open addressing over primitive arrays) maps each
+ * loan to its day and its place in its bucket, so loans are added, moved
+ * and removed in constant time, and nothing is allocated per loan.
+ *
+ * Days are local calendar days and a loan is overdue once the day after its
+ * maturity date has started, which can be up to a day earlier than
+ * LoanMath.LoanIsOverdue.
+ *
+ * Thread safe.
+ */
+public class MaturityIndex {
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    // a power of two so that a day's bucket is the day masked
+    private static final int WHEEL_DAYS = 64;
+    private static final int WHEEL_MASK = WHEEL_DAYS - 1;
+    private static final int OVERDUE = WHEEL_DAYS;
+    private static final int LATER = WHEEL_DAYS + 1;
+
+    private static final int INITIAL_BUCKET_SIZE = 16;
+    private static final int INITIAL_TABLE_SIZE = 256;
+
+    // loan ids are never 0, so 0 marks an empty slot in the hash table
+    private static final long NO_LOAN = 0;
+
+    private final TimeZone mTimeZone = TimeZone.getDefault();
+
+    // the loan ids in each bucket
+    private final long[][] mBuckets = new long[WHEEL_DAYS + 2][];
+    private final int[] mBucketSizes = new int[WHEEL_DAYS + 2];
+    // the day of the first bucket of the wheel
+    private long mToday;
+
+    // hash table of loan id to maturity day and position in its bucket
+    private long[] mLoanIds = new long[INITIAL_TABLE_SIZE];
+    private long[] mDays = new long[INITIAL_TABLE_SIZE];
+    private int[] mPositions = new int[INITIAL_TABLE_SIZE];
+    private int mSize;
+
+    /**
+     * Constructor - an empty index
+     *
+     * @param now the current time
+     */
+    public MaturityIndex(long now) {
+        mToday = dayOf(now);
+    }
+
+    /**
+     * Add an open loan, or move it if its maturity date has changed
+     *
+     * @param loanId id of the loan
+     * @param maturityDate the maturity date of the loan
+     */
+    public synchronized void put(long loanId, long maturityDate) {
+        long day = dayOf(maturityDate);
+        int slot = find(loanId);
+        if (mLoanIds[slot] == loanId) {
+            if (mDays[slot] == day) {
+                return;
+            }
+            removeFromBucket(bucketOf(mDays[slot]), mPositions[slot]);
+        }
+        else {
+            if ((mSize + 1) * 2 > mLoanIds.length) {
+                rehash(mLoanIds.length * 2);
+                slot = find(loanId);
+            }
+            mLoanIds[slot] = loanId;
+            mSize++;
+        }
+        mDays[slot] = day;
+        addToBucket(bucketOf(day), loanId, slot);
+    }
+
+    /**
+     * Remove a loan (ie when it is closed or deleted), a loan that is not in
+     * the index is ignored
+     *
+     * @param loanId id of the loan
+     */
+    public synchronized void remove(long loanId) {
+        int slot = find(loanId);
+        if (mLoanIds[slot] != loanId) {
+            return;
+        }
+        removeFromBucket(bucketOf(mDays[slot]), mPositions[slot]);
+        removeSlot(slot);
+        mSize--;
+    }
+
+    /**
+     * @return the number of open loans
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @param loanId id of the loan
+     * @param now the current time
+     * @return true if the loan is open and overdue
+     */
+    public synchronized boolean isOverdue(long loanId, long now) {
+        int slot = find(loanId);
+        return mLoanIds[slot] == loanId && mDays[slot] < dayOf(now);
+    }
+
+    /**
+     * @param now the current time
+     * @return the number of overdue loans
+     */
+    public synchronized int countOverdue(long now) {
+        turn(dayOf(now));
+        return mBucketSizes[OVERDUE];
+    }
+
+    /**
+     * Copy the ids of the overdue loans
+     *
+     * @param now the current time
+     * @param loanIds filled with as many of the ids as fit
+     * @return the number of overdue loans
+     */
+    public synchronized int getOverdue(long now, long[] loanIds) {
+        turn(dayOf(now));
+        int count = mBucketSizes[OVERDUE];
+        if (count > 0) {
+            System.arraycopy(mBuckets[OVERDUE], 0, loanIds, 0, Math.min(count, loanIds.length));
+        }
+        return count;
+    }
+
+    /**
+     * Count the loans that mature within a number of days
+     *
+     * @param now the current time
+     * @param days 1 for the loans due today, 7 for those due this week etc
+     * @return the number of loans due in the window
+     */
+    public synchronized int countDue(long now, int days) {
+        return getDue(now, days, null);
+    }
+
+    /**
+     * Copy the ids of the loans that mature within a number of days
+     *
+     * @param now the current time
+     * @param days 1 for the loans due today, 7 for those due this week etc
+     * @param loanIds filled with as many of the ids as fit, in maturity
+     * date order for the days on the wheel, or null to just count them
+     * @return the number of loans due in the window
+     */
+    public synchronized int getDue(long now, int days, long[] loanIds) {
+        turn(dayOf(now));
+        long end = mToday + days;
+        long wheelEnd = Math.min(end, mToday + WHEEL_DAYS);
+        int count = 0;
+        for (long day = mToday; day < wheelEnd; day++) {
+            int bucket = (int) (day & WHEEL_MASK);
+            int size = mBucketSizes[bucket];
+            if (loanIds != null && count < loanIds.length && size > 0) {
+                System.arraycopy(mBuckets[bucket], 0, loanIds, count, Math.min(size, loanIds.length - count));
+            }
+            count += size;
+        }
+        if (end > wheelEnd) {
+            // a window longer than the wheel, search the later loans
+            long[] later = mBuckets[LATER];
+            for (int i = 0; i < mBucketSizes[LATER]; i++) {
+                if (mDays[find(later[i])] < end) {
+                    if (loanIds != null && count < loanIds.length) {
+                        loanIds[count] = later[i];
+                    }
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private long dayOf(long time) {
+        long local = time + mTimeZone.getOffset(time);
+        // round down for times before the epoch too
+        return local >= 0 ? local / DAY_MS : (local + 1) / DAY_MS - 1;
+    }
+
+    private int bucketOf(long day) {
+        if (day < mToday) {
+            return OVERDUE;
+        }
+        if (day >= mToday + WHEEL_DAYS) {
+            return LATER;
+        }
+        return (int) (day & WHEEL_MASK);
+    }
+
+    /**
+     * Turn the wheel forward to a new day. The buckets of the days that
+     * have passed are emptied into the overdue bucket and the loans due on
+     * the days that come onto the end of the wheel are taken from the later
+     * bucket.
+     */
+    private void turn(long today) {
+        if (today <= mToday) {
+            return;
+        }
+        long passed = Math.min(today, mToday + WHEEL_DAYS);
+        for (long day = mToday; day < passed; day++) {
+            int bucket = (int) (day & WHEEL_MASK);
+            long[] ids = mBuckets[bucket];
+            for (int i = 0; i < mBucketSizes[bucket]; i++) {
+                addToBucket(OVERDUE, ids[i], find(ids[i]));
+            }
+            mBucketSizes[bucket] = 0;
+        }
+        mToday = today;
+
+        long[] later = mBuckets[LATER];
+        // backwards, since removing a loan moves the last one into its place
+        for (int i = mBucketSizes[LATER] - 1; i >= 0; i--) {
+            int slot = find(later[i]);
+            int bucket = bucketOf(mDays[slot]);
+            if (bucket != LATER) {
+                long loanId = later[i];
+                removeFromBucket(LATER, i);
+                addToBucket(bucket, loanId, slot);
+            }
+        }
+    }
+
+    private void addToBucket(int bucket, long loanId, int slot) {
+        long[] ids = mBuckets[bucket];
+        int size = mBucketSizes[bucket];
+        if (ids == null) {
+            ids = new long[INITIAL_BUCKET_SIZE];
+            mBuckets[bucket] = ids;
+        }
+        else if (size == ids.length) {
+            long[] grown = new long[size * 2];
+            System.arraycopy(ids, 0, grown, 0, size);
+            ids = grown;
+            mBuckets[bucket] = ids;
+        }
+        ids[size] = loanId;
+        mPositions[slot] = size;
+        mBucketSizes[bucket] = size + 1;
+    }
+
+    private void removeFromBucket(int bucket, int position) {
+        long[] ids = mBuckets[bucket];
+        int last = --mBucketSizes[bucket];
+        if (position != last) {
+            ids[position] = ids[last];
+            mPositions[find(ids[position])] = position;
+        }
+    }
+
+    private static int hash(long loanId) {
+        int h = (int) (loanId ^ (loanId >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the slot holding the loan, or the empty slot it would go in
+     */
+    private int find(long loanId) {
+        int mask = mLoanIds.length - 1;
+        int slot = hash(loanId) & mask;
+        while (mLoanIds[slot] != NO_LOAN && mLoanIds[slot] != loanId) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empty a slot, moving back any later entries of its probe sequence so
+     * that they can still be found
+     */
+    private void removeSlot(int slot) {
+        int mask = mLoanIds.length - 1;
+        int empty = slot;
+        mLoanIds[empty] = NO_LOAN;
+        for (int next = (empty + 1) & mask; mLoanIds[next] != NO_LOAN; next = (next + 1) & mask) {
+            int home = hash(mLoanIds[next]) & mask;
+            // move the entry unless its home lies cyclically in (empty, next]
+            boolean stays = empty <= next ? empty < home && home <= next : empty < home || home <= next;
+            if (!stays) {
+                mLoanIds[empty] = mLoanIds[next];
+                mDays[empty] = mDays[next];
+                mPositions[empty] = mPositions[next];
+                mLoanIds[next] = NO_LOAN;
+                empty = next;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] loanIds = mLoanIds;
+        long[] days = mDays;
+        int[] positions = mPositions;
+        mLoanIds = new long[capacity];
+        mDays = new long[capacity];
+        mPositions = new int[capacity];
+        for (int i = 0; i < loanIds.length; i++) {
+            if (loanIds[i] != NO_LOAN) {
+                int slot = find(loanIds[i]);
+                mLoanIds[slot] = loanIds[i];
+                mDays[slot] = days[i];
+                mPositions[slot] = positions[i];
+            }
+        }
+    }
+}
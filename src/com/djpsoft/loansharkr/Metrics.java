@@ -0,0 +1,187 @@
+package com.djpsoft.loansharkr;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+import android.util.Log;
+
+/**
+ * Latency histograms for the hot paths (database calls, list row binds,
+ * interest calculations and photo decoding and encoding), so that builds
+ * can be compared on real devices.
+ *
+ * Each timed path has a Timer, created once in a static field:
+ *
+ * <pre>
+ * long start = Metrics.start();
+ * try {
+ *     ...
+ * }
+ * finally {
+ *     TIMER.stop(start);
+ * }
+ * </pre>
+ *
+ * Recording does not allocate. Durations are counted in power of two
+ * buckets of microseconds, so percentiles are accurate to within a factor
+ * of two (the maximum is exact).
+ */
+public final class Metrics {
+
+    // Suppress default constructor for noninstantiability
+    private Metrics() {
+        throw new AssertionError();
+    }
+
+    private static final String TAG = "Metrics";
+
+    private static final ArrayList<Timer> sTimers = new ArrayList<Timer>();
+
+    /**
+     * A latency histogram and call counter for one path
+     */
+    public static final class Timer {
+        // bucket i counts durations of [2^(i-1), 2^i) us, bucket 0 is under 1us
+        private static final int BUCKETS = 32;
+
+        private final String mName;
+        private final long[] mBuckets = new long[BUCKETS];
+        private long mCount;
+        private long mTotal;
+        private long mMax;
+
+        private Timer(String name) {
+            mName = name;
+        }
+
+        /**
+         * Record a call
+         *
+         * @param start the time the call started, from Metrics.start()
+         */
+        public void stop(long start) {
+            long micros = (System.nanoTime() - start) / 1000;
+            int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+            synchronized (this) {
+                mBuckets[bucket]++;
+                mCount++;
+                mTotal += micros;
+                if (micros > mMax) {
+                    mMax = micros;
+                }
+            }
+        }
+
+        /**
+         * @return the upper bound (us) of the bucket holding the given
+         * fraction of calls, or the maximum if that is lower
+         */
+        private long percentile(double fraction) {
+            long rank = (long) Math.ceil(mCount * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(1L << i, mMax);
+                }
+            }
+            return mMax;
+        }
+
+        private synchronized void print(PrintWriter out) {
+            if (mCount == 0) {
+                return;
+            }
+            out.println(mName + " count=" + mCount + " mean=" + mTotal / mCount + "us p50=" + percentile(0.5)
+                    + "us p90=" + percentile(0.9) + "us p99=" + percentile(0.99) + "us max=" + mMax + "us");
+        }
+
+        private synchronized void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                mBuckets[i] = 0;
+            }
+            mCount = 0;
+            mTotal = 0;
+            mMax = 0;
+        }
+    }
+
+    /**
+     * Create a timer, normally in a static field
+     *
+     * @param name the name it is reported under
+     * @return the timer
+     */
+    public static Timer timer(String name) {
+        Timer timer = new Timer(name);
+        synchronized (sTimers) {
+            sTimers.add(timer);
+        }
+        return timer;
+    }
+
+    /**
+     * @return the start time of a call, to be passed to Timer.stop
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Write a snapshot of every timer that has recorded a call (count, mean,
+     * 50th, 90th and 99th percentiles and maximum)
+     *
+     * @param out the writer
+     */
+    public static void dump(PrintWriter out) {
+        synchronized (sTimers) {
+            for (Timer timer : sTimers) {
+                timer.print(out);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Write a snapshot to logcat
+     */
+    public static void dumpToLog() {
+        StringWriter s = new StringWriter();
+        dump(new PrintWriter(s));
+        Log.i(TAG, s.toString());
+    }
+
+    /**
+     * Write a snapshot to a file
+     *
+     * @param file the file, which is overwritten
+     * @throws IOException if the file could not be written
+     */
+    public static void dumpToFile(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            dump(out);
+            if (out.checkError()) {
+                throw new IOException("Could not write " + file);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Clear every timer, ie before a run to be compared
+     */
+    public static void reset() {
+        synchronized (sTimers) {
+            for (Timer timer : sTimers) {
+                timer.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.djpsoft.loansharkr;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * Fixed point money arithmetic on primitive longs. Amounts are held in cents
+ * and weekly interest rates in hundredths of a percent, which is how they
+ * are stored in the loans table, so these helpers do not allocate (except
+ * when CalculateTotalRepayment has to fall back to LoanMath).
+ */
+public final class Money {
+
+    // Suppress default constructor for noninstantiability
+    private Money() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Returned by CalculateTotalRepayment when the total does not fit in a
+     * long number of cents
+     */
+    public static final long OVERFLOW = Long.MIN_VALUE;
+
+    /**
+     * Size of a buffer big enough for any formatted amount (sign, 19 digits,
+     * decimal point and currency symbol)
+     */
+    public static final int MAX_FORMATTED_LENGTH = 24;
+
+    private static final long WEEK_MS = 1000L * 60 * 60 * 24 * 7;
+    private static final long PARTIAL_WEEK_SCALE = 10000000000L; // 10 decimal places
+    private static final double EPSILON = 1.0 / (1L << 53);
+    private static final double MAX_EXACT_CENTS = 1L << 53;
+    private static final BigDecimal MAX_CURRENCY = LoanMath.ConvertIntegerToCurrency(Long.MAX_VALUE);
+
+    /**
+     * Calculate the interest (compounding weekly) on a loan. Gives the same
+     * result to the cent as LoanMath.CalculateTotalRepayment, which is used
+     * as a fallback when the double result is too close to a half cent.
+     *
+     * @param startDate the starting date of the loan (ms)
+     * @param endDate the end date of the loan (ms)
+     * @param debt the size of the loan in cents
+     * @param weeklyInterest the weekly interest rate in hundredths of a percent
+     * @return the total repayment amount in cents, or OVERFLOW
+     */
+    public static long CalculateTotalRepayment(long startDate, long endDate, long debt, long weeklyInterest) {
+        long diff_ms = endDate - startDate;
+        if (diff_ms <= 0) {
+            return debt;
+        }
+        long wholeWeeks = diff_ms / WEEK_MS;
+        long partialWeek = RoundHalfEven((diff_ms % WEEK_MS) * PARTIAL_WEEK_SCALE, WEEK_MS);
+        if (partialWeek == PARTIAL_WEEK_SCALE) {
+            wholeWeeks++;
+            partialWeek = 0;
+        }
+
+        if (weeklyInterest >= 0 && wholeWeeks < Integer.MAX_VALUE) {
+            double rate = weeklyInterest / 10000.0;
+            double total = debt * Math.pow(1.0 + rate, wholeWeeks)
+                    * (1.0 + rate * (partialWeek / (double) PARTIAL_WEEK_SCALE));
+            // relative error grows with every compounded week, see Math.pow
+            double relativeError = (4 * wholeWeeks + 32) * EPSILON;
+            double error = Math.abs(total) * relativeError;
+            if (total * (1 - relativeError) > Long.MAX_VALUE) {
+                // far too big to store, no need to work out the digits
+                return OVERFLOW;
+            }
+            if (Math.abs(total) < MAX_EXACT_CENTS && error < 0.25) {
+                double floor = Math.floor(total);
+                double fraction = total - floor;
+                if (fraction < 0.5 - error) {
+                    return (long) floor;
+                }
+                if (fraction > 0.5 + error) {
+                    return (long) floor + 1;
+                }
+            }
+        }
+
+        // too close to a half cent (or too big) to trust the double result
+        BigDecimal total = LoanMath.CalculateTotalRepayment(new Date(startDate), new Date(endDate),
+                LoanMath.ConvertIntegerToCurrency(debt), LoanMath.ConvertIntegerToCurrency(weeklyInterest));
+        if (total.abs().compareTo(MAX_CURRENCY) > 0) {
+            return OVERFLOW;
+        }
+        return LoanMath.ConvertCurrencyToInteger(total);
+    }
+
+    /**
+     * Calculate the balance of a loan at a date from an earlier balance, the
+     * same as LoanHelper.CalculateBalance.
+     *
+     * @param balanceDate the date of the known balance (ms)
+     * @param date the date to calculate the balance at (ms)
+     * @param balance the known balance in cents
+     * @param weeklyInterest the weekly interest rate in hundredths of a percent
+     * @return the balance at date in cents, or OVERFLOW
+     */
+    public static long CalculateBalance(long balanceDate, long date, long balance, long weeklyInterest) {
+        if (balance <= 0) {
+            return balance;
+        }
+        return CalculateTotalRepayment(balanceDate, date, balance, weeklyInterest);
+    }
+
+    /**
+     * Divide two longs rounding half to even (ie the same as
+     * BigDecimal.divide(divisor, 0, RoundingMode.HALF_EVEN))
+     *
+     * @param dividend the dividend
+     * @param divisor the divisor (must be positive)
+     * @return the rounded quotient
+     */
+    public static long RoundHalfEven(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        long remainder = dividend % divisor;
+        if (remainder < 0) {
+            remainder += divisor;
+            quotient--;
+        }
+        long twice = remainder * 2;
+        if (twice > divisor || (twice == divisor && (quotient & 1) != 0)) {
+            quotient++;
+        }
+        return quotient;
+    }
+
+    /**
+     * Format cents as currency with two decimal places (ie 534 -> 5.34,
+     * 1000 -> 10.00), the same as BigDecimal.setScale(2).toString()
+     *
+     * @param cents the amount in cents
+     * @param buf the buffer to write to
+     * @param offset the position in buf to start writing
+     * @return the position in buf after the last character written
+     */
+    public static int FormatCurrency(long cents, char[] buf, int offset) {
+        return Format(cents, buf, offset, false);
+    }
+
+    /**
+     * Format cents as currency without trailing zeros (ie 534 -> 5.34,
+     * 1010 -> 10.1, 1000 -> 10), the same as
+     * LoanMath.ConvertIntegerToCurrency(cents).toPlainString()
+     *
+     * @param cents the amount in cents
+     * @param buf the buffer to write to
+     * @param offset the position in buf to start writing
+     * @return the position in buf after the last character written
+     */
+    public static int FormatPlainCurrency(long cents, char[] buf, int offset) {
+        return Format(cents, buf, offset, true);
+    }
+
+    private static int Format(long cents, char[] buf, int offset, boolean trimZeros) {
+        boolean negative = cents < 0;
+        // work with negative values so Long.MIN_VALUE does not overflow
+        long value = negative ? cents : -cents;
+        int fraction = (int) -(value % 100);
+        long whole = -(value / 100);
+
+        if (negative) {
+            buf[offset++] = '-';
+        }
+        offset = FormatLong(whole, buf, offset);
+        if (trimZeros) {
+            if (fraction != 0) {
+                buf[offset++] = '.';
+                buf[offset++] = (char) ('0' + fraction / 10);
+                if (fraction % 10 != 0) {
+                    buf[offset++] = (char) ('0' + fraction % 10);
+                }
+            }
+        }
+        else {
+            buf[offset++] = '.';
+            buf[offset++] = (char) ('0' + fraction / 10);
+            buf[offset++] = (char) ('0' + fraction % 10);
+        }
+        return offset;
+    }
+
+    private static int FormatLong(long value, char[] buf, int offset) {
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            digits++;
+        }
+        int end = offset + digits;
+        for (int i = end - 1; i >= offset; i--) {
+            buf[i] = (char) ('0' + Math.abs(value % 10));
+            value /= 10;
+        }
+        return end;
+    }
+}
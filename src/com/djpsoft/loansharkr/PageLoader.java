@@ -0,0 +1,156 @@
+package com.djpsoft.loansharkr;
+
+import android.database.Cursor;
+import android.widget.AbsListView;
+import android.widget.CursorAdapter;
+
+/**
+ * Fills a CursorAdapter a page at a time using one of the adapter's keyset
+ * paginated queries. The first page is loaded by reload() and further pages
+ * are loaded in the background as the list is scrolled towards its end, so
+ * the time taken by each query does not grow with the size of the list.
+ *
+ * Set as the list's OnScrollListener. Must only be called from the UI thread.
+ */
+public abstract class PageLoader implements AbsListView.OnScrollListener {
+
+    /** number of rows fetched by each query */
+    public static final int PAGE_SIZE = 50;
+
+    // the query and filling the window with its rows
+    private static final Metrics.Timer TIMER_FETCH_PAGE = Metrics.timer("page.fetch");
+
+    private final DbWorker mDbWorker;
+    private final CursorAdapter mAdapter;
+    private DbWorker.Job<Page> mJob;
+    private PagedCursor mCursor;
+    private LoanSharkrDbAdapter.PageKey mLastKey;
+    private boolean mExhausted;
+
+    private static class Page {
+        final Cursor mCursor;
+        final LoanSharkrDbAdapter.PageKey mLastKey;
+
+        Page(Cursor cursor, LoanSharkrDbAdapter.PageKey lastKey) {
+            mCursor = cursor;
+            mLastKey = lastKey;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param dbWorker the worker to run the queries on
+     * @param adapter the adapter to fill, its cursor is replaced by reload()
+     */
+    public PageLoader(DbWorker dbWorker, CursorAdapter adapter) {
+        mDbWorker = dbWorker;
+        mAdapter = adapter;
+    }
+
+    /**
+     * Fetch a page of rows, called on a worker thread
+     *
+     * @param db an open database adapter
+     * @param after key of the last row of the previous page or null for the
+     * first page
+     * @param limit the maximum number of rows to fetch
+     * @return Cursor over the page
+     */
+    protected abstract Cursor fetchPage(LoanSharkrDbAdapter db, LoanSharkrDbAdapter.PageKey after,
+            int limit);
+
+    /**
+     * Get the key of the last row of a page, called on a worker thread
+     *
+     * @param page the page returned by fetchPage
+     * @return the key
+     */
+    protected abstract LoanSharkrDbAdapter.PageKey lastKey(Cursor page);
+
+    /**
+     * Whether a page is the last one in the list, called on the UI thread
+     *
+     * @param page the page returned by fetchPage
+     * @param limit the maximum number of rows that were fetched
+     * @return true if there are no more pages to load
+     */
+    protected boolean isLastPage(Cursor page, int limit) {
+        return page.getCount() < limit;
+    }
+
+    /**
+     * Reload the list from the start. As many rows as are already loaded are
+     * fetched again so the list keeps its scroll position.
+     */
+    public void reload() {
+        int limit = PAGE_SIZE;
+        if (mCursor != null) {
+            limit = Math.max(limit, mCursor.getCount());
+        }
+        load(null, limit);
+    }
+
+    /**
+     * Cancel any query that is still running
+     */
+    public void cancel() {
+        if (mJob != null) {
+            mJob.cancel();
+            mJob = null;
+        }
+    }
+
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        // fetch the next page while there is still half a page left to scroll
+        if (mJob == null && mCursor != null && !mExhausted
+                && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 2) {
+            load(mLastKey, PAGE_SIZE);
+        }
+    }
+
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    private void load(final LoanSharkrDbAdapter.PageKey after, final int limit) {
+        // a reload supersedes any page that is still loading
+        cancel();
+        mJob = mDbWorker.query(new DbWorker.Job<Page>() {
+            @Override
+            protected Page doInBackground(LoanSharkrDbAdapter db) {
+                long start = Metrics.start();
+                Cursor page = fetchPage(db, after, limit);
+                // fill the cursor window here rather than on the UI thread
+                int count = page.getCount();
+                TIMER_FETCH_PAGE.stop(start);
+                if (count == 0) {
+                    return new Page(page, null);
+                }
+                return new Page(page, lastKey(page));
+            }
+
+            @Override
+            protected void onResult(Page page) {
+                mJob = null;
+                mExhausted = isLastPage(page.mCursor, limit);
+                if (after == null || page.mLastKey != null) {
+                    mLastKey = page.mLastKey;
+                }
+                if (after == null) {
+                    mCursor = new PagedCursor(page.mCursor);
+                    mAdapter.changeCursor(mCursor);
+                }
+                else {
+                    mCursor.addPage(page.mCursor);
+                    mAdapter.notifyDataSetChanged();
+                }
+            }
+
+            @Override
+            protected void onCancelled(Page page) {
+                page.mCursor.close();
+            }
+        });
+    }
+}
@@ -0,0 +1,139 @@
+package com.djpsoft.loansharkr;
+
+import java.util.ArrayList;
+
+import android.database.AbstractCursor;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+/**
+ * A Cursor over a list that is read a page at a time, each page is a cursor
+ * from one of the adapter's fetch...Page queries and pages are appended as
+ * the list is scrolled. Only the pages that have been read are held in
+ * memory.
+ *
+ * All pages must have the same columns.
+ */
+public class PagedCursor extends AbstractCursor {
+
+    private final ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+    // the position of the first row of each page
+    private final ArrayList<Integer> mStarts = new ArrayList<Integer>();
+    private final String[] mColumnNames;
+    private int mCount;
+    private Cursor mCurrent;
+
+    /**
+     * Constructor
+     *
+     * @param firstPage the first page, owned by this cursor from now on
+     */
+    public PagedCursor(Cursor firstPage) {
+        mColumnNames = firstPage.getColumnNames();
+        addPage(firstPage);
+    }
+
+    /**
+     * Append a page to the end of the list, the caller should then notify
+     * the list adapter that its data has changed.
+     *
+     * @param page the page, owned by this cursor from now on
+     */
+    public void addPage(Cursor page) {
+        mPages.add(page);
+        mStarts.add(mCount);
+        mCount += page.getCount();
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        // pages are few, and rows are normally read from the last page used
+        // or the one next to it, so a linear search from the end is enough
+        for (int i = mPages.size() - 1; i >= 0; i--) {
+            int start = mStarts.get(i);
+            if (newPosition >= start) {
+                mCurrent = mPages.get(i);
+                return mCurrent.moveToPosition(newPosition - start);
+            }
+        }
+        mCurrent = null;
+        return false;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCurrent.getString(column);
+    }
+
+    @Override
+    public void copyStringToBuffer(int column, CharArrayBuffer buffer) {
+        // the page copies straight from its window, AbstractCursor's would
+        // make a String first
+        mCurrent.copyStringToBuffer(column, buffer);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCurrent.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCurrent.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCurrent.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCurrent.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCurrent.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCurrent.getBlob(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCurrent.isNull(column);
+    }
+
+    @Override
+    public void deactivate() {
+        for (Cursor page : mPages) {
+            page.deactivate();
+        }
+        super.deactivate();
+    }
+
+    @Override
+    public void close() {
+        for (Cursor page : mPages) {
+            page.close();
+        }
+        mPages.clear();
+        mStarts.clear();
+        mCount = 0;
+        mCurrent = null;
+        super.close();
+    }
+}
@@ -0,0 +1,159 @@
+package com.djpsoft.loansharkr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Encodes newly taken photos as JPEG into files in the cache directory, so
+ * that a photo is compressed once, off the UI thread, and an activity only
+ * needs to keep the file in its saved state. The file's bytes are stored
+ * as they are when the client is saved.
+ *
+ * The work runs on one background thread shared by all activities, in the
+ * order it was submitted, so a read of a file always sees the photo written
+ * by an earlier encode (ie by the activity instance before a rotation).
+ */
+public final class PhotoEncoder {
+
+    // Suppress default constructor for noninstantiability
+    private PhotoEncoder() {
+        throw new AssertionError();
+    }
+
+    private static final String TAG = "PhotoEncoder";
+
+    private static final Metrics.Timer TIMER_ENCODE_PHOTO = Metrics.timer("photo.encode");
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+        }
+    });
+
+    /**
+     * @param ctx the Context within which to work
+     * @return a new file in the cache directory to encode a photo into
+     */
+    public static File newPhotoFile(Context ctx) {
+        return new File(ctx.getCacheDir(), "photo-" + UUID.randomUUID() + ".jpg");
+    }
+
+    /**
+     * Encode a photo into a file in the background. If it cannot be written
+     * the file is removed, so a later read fails rather than returning part
+     * of a photo.
+     *
+     * @param photo the photo
+     * @param file the file, from newPhotoFile
+     */
+    public static void encode(final Bitmap photo, final File file) {
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                long start = Metrics.start();
+                try {
+                    OutputStream out = new FileOutputStream(file);
+                    try {
+                        if (!photo.compress(CompressFormat.JPEG, LoanSharkrDbAdapter.JPEG_QUALITY, out)) {
+                            throw new IOException("Could not encode " + file);
+                        }
+                    }
+                    finally {
+                        out.close();
+                    }
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Could not write " + file, e);
+                    file.delete();
+                }
+                finally {
+                    TIMER_ENCODE_PHOTO.stop(start);
+                }
+            }
+        });
+    }
+
+    /**
+     * Read an encoded photo, waiting for it to be written if it is still
+     * being encoded. Must not be called on the UI thread.
+     *
+     * @param file the file the photo was encoded into
+     * @return the JPEG data
+     * @throws IOException if the photo could not be encoded or read
+     */
+    public static byte[] read(final File file) throws IOException {
+        try {
+            return sExecutor.submit(new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    return readFile(file);
+                }
+            }).get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading " + file);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Remove a photo file in the background, once any encode of it has
+     * finished
+     *
+     * @param file the file the photo was encoded into
+     */
+    public static void delete(final File file) {
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                file.delete();
+            }
+        });
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException("No photo in " + file);
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int length = 0;
+            while (length < data.length) {
+                int n = in.read(data, length, data.length - length);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                length += n;
+            }
+            return data;
+        }
+        finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package com.djpsoft.loansharkr;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+/**
+ * Loads client photos into ImageViews. Photos are fetched from the database
+ * and decoded (downsampled to the size they are displayed at) on a
+ * background thread, and the decoded bitmaps are kept in a size bounded LRU
+ * cache keyed by client id and photo version that is shared by all loaders.
+ *
+ * Must only be called from the UI thread.
+ */
+public class PhotoLoader {
+
+    private static final int MAX_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private static final Metrics.Timer TIMER_DECODE_PHOTO = Metrics.timer("photo.decode");
+
+    private static final PhotoCache sCache = new PhotoCache(
+            (int) Math.min(MAX_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 8));
+
+    private final LoanSharkrDbAdapter mDbHelper;
+    private final Runnable mCloseDb = new Runnable() {
+        public void run() {
+            mDbHelper.close();
+        }
+    };
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // the request each ImageView is currently waiting on, requests only hold
+    // their view weakly so that a view that is dropped can be collected
+    private final Map<ImageView, PhotoRequest> mPending = new WeakHashMap<ImageView, PhotoRequest>();
+
+    /**
+     * Constructor - the loader holds its own reference to the database
+     * (opened on the background thread) so that the background thread can
+     * finish with it after the activity that created the loader has closed
+     * its own
+     *
+     * @param ctx the Context within which to work
+     */
+    public PhotoLoader(Context ctx) {
+        mDbHelper = new LoanSharkrDbAdapter(ctx);
+    }
+
+    /**
+     * Constructor for a database other than the app's own, see
+     * LoanSharkrDbAdapter(Context, String)
+     *
+     * @param ctx the Context within which to work
+     * @param databaseName the name of the database file
+     */
+    public PhotoLoader(Context ctx, String databaseName) {
+        mDbHelper = new LoanSharkrDbAdapter(ctx, databaseName);
+    }
+
+    /**
+     * Display a client photo in an ImageView at the size given by the view's
+     * layout parameters.
+     *
+     * @param view the view to display the photo in
+     * @param clientId id of the client
+     * @param photoVersion the client's photo version (0 if it has no photo)
+     */
+    public void loadPhoto(ImageView view, long clientId, int photoVersion) {
+        ViewGroup.LayoutParams params = view.getLayoutParams();
+        int width = params != null ? params.width : 0;
+        int height = params != null ? params.height : 0;
+        loadPhoto(view, clientId, photoVersion, width, height);
+    }
+
+    /**
+     * Display a client photo in an ImageView. The default photo is shown
+     * until the client photo has loaded, and any earlier request for the same
+     * ImageView (ie a recycled list row) is cancelled.
+     *
+     * @param view the view to display the photo in
+     * @param clientId id of the client
+     * @param photoVersion the client's photo version (0 if it has no photo)
+     * @param width the width the photo is displayed at (px, 0 for full size)
+     * @param height the height the photo is displayed at (px, 0 for full size)
+     */
+    public void loadPhoto(ImageView view, long clientId, int photoVersion, int width, int height) {
+        PhotoRequest pending = mPending.get(view);
+        if (pending != null) {
+            if (pending.matches(clientId, photoVersion)) {
+                return;
+            }
+            pending.cancel();
+            mPending.remove(view);
+        }
+
+        if (photoVersion == 0) {
+            view.setImageResource(R.drawable.sheep);
+            return;
+        }
+        Bitmap photo = sCache.get(clientId, photoVersion);
+        if (photo != null) {
+            // setImageBitmap wraps the bitmap in a new drawable, so a
+            // recycled row that already shows it is left alone
+            Drawable shown = view.getDrawable();
+            if (!(shown instanceof BitmapDrawable) || ((BitmapDrawable) shown).getBitmap() != photo) {
+                view.setImageBitmap(photo);
+            }
+            return;
+        }
+
+        view.setImageResource(R.drawable.sheep);
+        PhotoRequest request = new PhotoRequest(view, clientId, photoVersion, width, height);
+        mPending.put(view, request);
+        request.mFuture = mExecutor.submit(request);
+    }
+
+    /**
+     * Cancel all outstanding requests and stop the background thread once
+     * it has finished with the database. The loader cannot be used afterwards.
+     */
+    public void shutdown() {
+        for (PhotoRequest request : mPending.values()) {
+            request.cancel();
+        }
+        mPending.clear();
+        mExecutor.execute(mCloseDb);
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Decode JPEG data downsampled by a power of two so that it is no
+     * smaller than the requested size.
+     *
+     * @param data the JPEG data
+     * @param width the requested width (px)
+     * @param height the requested height (px)
+     * @return the bitmap or null if it could not be decoded
+     */
+    public static Bitmap decodeSampledPhoto(byte[] data, int width, int height) {
+        long start = Metrics.start();
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+            int sampleSize = 1;
+            if (width > 0 && height > 0) {
+                while (options.outWidth / (sampleSize * 2) >= width
+                        && options.outHeight / (sampleSize * 2) >= height) {
+                    sampleSize *= 2;
+                }
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+        finally {
+            TIMER_DECODE_PHOTO.stop(start);
+        }
+    }
+
+    private class PhotoRequest implements Runnable {
+        private final WeakReference<ImageView> mView;
+        private final long mClientId;
+        private final int mPhotoVersion;
+        private final int mWidth;
+        private final int mHeight;
+        private volatile boolean mCancelled;
+        private Future<?> mFuture;
+
+        PhotoRequest(ImageView view, long clientId, int photoVersion, int width, int height) {
+            mView = new WeakReference<ImageView>(view);
+            mClientId = clientId;
+            mPhotoVersion = photoVersion;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        boolean matches(long clientId, int photoVersion) {
+            return mClientId == clientId && mPhotoVersion == photoVersion;
+        }
+
+        void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+        }
+
+        public void run() {
+            Bitmap photo = null;
+            try {
+                if (!mCancelled) {
+                    byte[] data = mDbHelper.open().fetchPhoto(mClientId);
+                    if (data != null && !mCancelled) {
+                        photo = decodeSampledPhoto(data, mWidth, mHeight);
+                    }
+                }
+            }
+            finally {
+                // finish even if there is no photo or it could not be read,
+                // so the request does not stay pending
+                final Bitmap result = photo;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        finish(result);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Called on the UI thread when the request has completed
+         *
+         * @param photo the decoded photo or null if there is none
+         */
+        private void finish(Bitmap photo) {
+            if (photo != null) {
+                sCache.put(mClientId, mPhotoVersion, photo);
+            }
+            ImageView view = mView.get();
+            if (view == null || mPending.get(view) != this) {
+                return;
+            }
+            mPending.remove(view);
+            if (photo != null && !mCancelled) {
+                view.setImageBitmap(photo);
+            }
+        }
+    }
+
+    /**
+     * LRU cache of decoded photos bounded by the total size of the bitmaps.
+     * Only the latest version of each client's photo is kept. The photos
+     * are found by client id in an open addressing table (linear probing)
+     * so that looking one up while a row is bound allocates nothing, and
+     * are linked in order of use.
+     */
+    private static class PhotoCache {
+        private final int mMaxBytes;
+        private int mBytes;
+        private long[] mClientIds = new long[16];
+        private CachedPhoto[] mPhotos = new CachedPhoto[16];
+        private int mSize;
+        // mLru.mNext is the least and mLru.mPrev the most recently used
+        private final CachedPhoto mLru = new CachedPhoto();
+
+        private static class CachedPhoto {
+            final long mClientId;
+            final int mPhotoVersion;
+            final Bitmap mPhoto;
+            final int mBytes;
+            CachedPhoto mPrev = this;
+            CachedPhoto mNext = this;
+
+            CachedPhoto(long clientId, int photoVersion, Bitmap photo) {
+                mClientId = clientId;
+                mPhotoVersion = photoVersion;
+                mPhoto = photo;
+                mBytes = photo.getRowBytes() * photo.getHeight();
+            }
+
+            // the head of the list
+            CachedPhoto() {
+                mClientId = 0;
+                mPhotoVersion = 0;
+                mPhoto = null;
+                mBytes = 0;
+            }
+
+            void unlink() {
+                mPrev.mNext = mNext;
+                mNext.mPrev = mPrev;
+            }
+
+            void linkBefore(CachedPhoto next) {
+                mNext = next;
+                mPrev = next.mPrev;
+                mPrev.mNext = this;
+                next.mPrev = this;
+            }
+        }
+
+        PhotoCache(int maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        synchronized Bitmap get(long clientId, int photoVersion) {
+            CachedPhoto cached = mPhotos[slot(clientId)];
+            if (cached == null || cached.mPhotoVersion != photoVersion) {
+                return null;
+            }
+            cached.unlink();
+            cached.linkBefore(mLru);
+            return cached.mPhoto;
+        }
+
+        synchronized void put(long clientId, int photoVersion, Bitmap photo) {
+            CachedPhoto cached = new CachedPhoto(clientId, photoVersion, photo);
+            int slot = slot(clientId);
+            CachedPhoto old = mPhotos[slot];
+            if (old != null) {
+                old.unlink();
+                mBytes -= old.mBytes;
+            }
+            else if ((mSize + 1) * 4 > mPhotos.length * 3) {
+                grow();
+                slot = slot(clientId);
+            }
+            if (old == null) {
+                mClientIds[slot] = clientId;
+                mSize++;
+            }
+            mPhotos[slot] = cached;
+            cached.linkBefore(mLru);
+            mBytes += cached.mBytes;
+            while (mBytes > mMaxBytes && mLru.mNext != cached) {
+                CachedPhoto eldest = mLru.mNext;
+                eldest.unlink();
+                mBytes -= eldest.mBytes;
+                remove(slot(eldest.mClientId));
+            }
+        }
+
+        /**
+         * Return the slot of a client's photo, or the empty slot it would go in
+         */
+        private int slot(long clientId) {
+            int mask = mPhotos.length - 1;
+            int i = hash(clientId) & mask;
+            while (mPhotos[i] != null && mClientIds[i] != clientId) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private static int hash(long clientId) {
+            int h = (int) (clientId ^ (clientId >>> 32)) * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+
+        /**
+         * Empty a slot, moving later photos of the same run back into it so
+         * that every photo can still be reached from its home slot
+         */
+        private void remove(int slot) {
+            int mask = mPhotos.length - 1;
+            mPhotos[slot] = null;
+            mSize--;
+            for (int i = (slot + 1) & mask; mPhotos[i] != null; i = (i + 1) & mask) {
+                int home = hash(mClientIds[i]) & mask;
+                // leave photos whose home slot is between the hole and them
+                if (((i - home) & mask) >= ((i - slot) & mask)) {
+                    mClientIds[slot] = mClientIds[i];
+                    mPhotos[slot] = mPhotos[i];
+                    mPhotos[i] = null;
+                    slot = i;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] clientIds = mClientIds;
+            CachedPhoto[] photos = mPhotos;
+            mClientIds = new long[clientIds.length * 2];
+            mPhotos = new CachedPhoto[photos.length * 2];
+            for (int i = 0; i < photos.length; i++) {
+                if (photos[i] != null) {
+                    int slot = slot(clientIds[i]);
+                    mClientIds[slot] = clientIds[i];
+                    mPhotos[slot] = photos[i];
+                }
+            }
+        }
+    }
+}
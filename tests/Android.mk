@@ -0,0 +1,17 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+# Only build the tests apk when tests are built
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_JAVA_LIBRARIES := android.test.runner
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_PACKAGE_NAME := LoanSharkrTests
+
+LOCAL_INSTRUMENTATION_FOR := LoanSharkr
+
+LOCAL_SDK_VERSION := current
+
+include $(BUILD_PACKAGE)
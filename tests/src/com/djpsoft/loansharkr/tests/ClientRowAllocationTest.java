@@ -0,0 +1,188 @@
+package com.djpsoft.loansharkr.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Calendar;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Debug;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.view.View;
+import android.widget.CursorAdapter;
+import android.widget.ImageView;
+
+import com.djpsoft.loansharkr.LoanMath;
+import com.djpsoft.loansharkr.LoanSharkr;
+import com.djpsoft.loansharkr.LoanSharkrDbAdapter;
+import com.djpsoft.loansharkr.PageLoader;
+import com.djpsoft.loansharkr.PagedCursor;
+import com.djpsoft.loansharkr.PhotoLoader;
+import com.djpsoft.loansharkr.R;
+
+/**
+ * Counts the objects allocated while the client list binds its rows over
+ * and over, as it does while the list is scrolled. The rows cover a client
+ * whose photo is cached, clients without one and a client with an overdue
+ * loan, and their ids are too big for Long's cache of boxed values. A row
+ * creates no Strings to display (the name and phone are copied into its own
+ * buffers), so binding must allocate nothing at all.
+ *
+ * The clients are in a database of their own, the photo is loaded into the
+ * cache (which is shared by every PhotoLoader) by a loader of that database.
+ */
+public class ClientRowAllocationTest extends ActivityInstrumentationTestCase2<LoanSharkr> {
+
+    private static final String TAG = "ClientRowAllocationTest";
+    private static final String DATABASE = "client_row_allocation_test";
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    private static final int BINDS = 10000;
+    private static final int STRINGS_PER_BIND = 0;
+    private static final int PHOTO_SIZE = 60;
+    private static final long PHOTO_TIMEOUT_MS = 10000;
+
+    private LoanSharkrDbAdapter mDb;
+    private long mPhotoClientId;
+    private int mAllocations;
+    private boolean mPhotoShown;
+
+    public ClientRowAllocationTest() {
+        super("com.djpsoft.loansharkr", LoanSharkr.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Context context = getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        mDb = new LoanSharkrDbAdapter(context, DATABASE).open();
+
+        // push the ids past 127, the last id Long.valueOf has boxed already
+        long[] fillers = new long[200];
+        LoanSharkrDbAdapter.BulkInserter inserter = mDb.beginBulkInsert(fillers.length);
+        try {
+            for (int i = 0; i < fillers.length; i++) {
+                fillers[i] = inserter.insertClient("Zed " + i, "", "");
+            }
+        }
+        finally {
+            inserter.close();
+        }
+        long[] deleted = new long[fillers.length - 1];
+        System.arraycopy(fillers, 0, deleted, 0, deleted.length);
+        mDb.deleteClients(deleted);
+
+        long now = System.currentTimeMillis();
+        mPhotoClientId = mDb.createClient("Big Tony", "555 0100", "", newPhoto());
+        long overdue = mDb.createClient("Fat Tony", "555 0101", "", null);
+        mDb.createClientLoan(overdue, 2550, 250, now - 30 * DAY_MS, now - 2 * DAY_MS);
+        long open = mDb.createClient("Nicky Nine Fingers", "555 0102", "", null);
+        mDb.createClientLoan(open, 150000, 1000, now - 10 * DAY_MS, now + 30 * DAY_MS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        getInstrumentation().getTargetContext().deleteDatabase(DATABASE);
+        super.tearDown();
+    }
+
+    public void testBindDoesNotAllocate() throws Exception {
+        final LoanSharkr activity = getActivity();
+        final CursorAdapter adapter = (CursorAdapter) activity.getListAdapter();
+        long overdueThreshold = LoanMath.OverdueThreshold(Calendar.getInstance().getTime());
+        final Cursor clients = new PagedCursor(mDb.fetchClientsPage(overdueThreshold,
+                LoanSharkrDbAdapter.SORT_BY_NAME, null, PageLoader.PAGE_SIZE));
+        try {
+            assertEquals(4, clients.getCount());
+            cachePhoto(activity, clients);
+
+            getInstrumentation().runOnMainSync(new Runnable() {
+                public void run() {
+                    int rows = clients.getCount();
+                    View[] views = new View[rows];
+                    // the first bind finds the columns and sets the photo, so
+                    // is not counted
+                    for (int i = 0; i < rows; i++) {
+                        clients.moveToPosition(i);
+                        views[i] = adapter.newView(activity, clients, activity.getListView());
+                        adapter.bindView(views[i], activity, clients);
+                    }
+
+                    Debug.resetThreadAllocCount();
+                    Debug.startAllocCounting();
+                    for (int i = 0; i < BINDS; i++) {
+                        int row = i % rows;
+                        clients.moveToPosition(row);
+                        adapter.bindView(views[row], activity, clients);
+                    }
+                    Debug.stopAllocCounting();
+                    mAllocations = Debug.getThreadAllocCount();
+                }
+            });
+        }
+        finally {
+            clients.close();
+        }
+        Log.i(TAG, mAllocations + " allocations in " + BINDS + " binds");
+        assertEquals(BINDS * STRINGS_PER_BIND, mAllocations);
+    }
+
+    /**
+     * Load the photo client's photo into the cache, waiting until a view
+     * shows it
+     */
+    private void cachePhoto(final LoanSharkr activity, Cursor clients) throws InterruptedException {
+        int id = clients.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_ROWID);
+        int photoVersion = clients.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHOTOVERSION);
+        int version = 0;
+        while (clients.moveToNext()) {
+            if (clients.getLong(id) == mPhotoClientId) {
+                version = clients.getInt(photoVersion);
+            }
+        }
+        assertTrue(mPhotoClientId > 127);
+        assertTrue(version != 0);
+
+        final Drawable sheep = activity.getResources().getDrawable(R.drawable.sheep);
+        final ImageView view = new ImageView(activity);
+        final PhotoLoader loader = new PhotoLoader(activity, DATABASE);
+        final int clientVersion = version;
+        getInstrumentation().runOnMainSync(new Runnable() {
+            public void run() {
+                loader.loadPhoto(view, mPhotoClientId, clientVersion, PHOTO_SIZE, PHOTO_SIZE);
+            }
+        });
+        long deadline = System.currentTimeMillis() + PHOTO_TIMEOUT_MS;
+        while (!mPhotoShown && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            getInstrumentation().runOnMainSync(new Runnable() {
+                public void run() {
+                    Drawable shown = view.getDrawable();
+                    mPhotoShown = shown instanceof BitmapDrawable
+                            && ((BitmapDrawable) shown).getBitmap() != ((BitmapDrawable) sheep).getBitmap();
+                }
+            });
+        }
+        getInstrumentation().runOnMainSync(new Runnable() {
+            public void run() {
+                loader.shutdown();
+            }
+        });
+        assertTrue("photo was not loaded", mPhotoShown);
+    }
+
+    private static byte[] newPhoto() {
+        Bitmap photo = Bitmap.createBitmap(PHOTO_SIZE * 2, PHOTO_SIZE * 2, Bitmap.Config.RGB_565);
+        photo.eraseColor(0xff806040);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        photo.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        photo.recycle();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,107 @@
+package com.djpsoft.loansharkr.tests;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.djpsoft.loansharkr.LoanSharkrDbAdapter;
+
+/**
+ * Checks that a client's projected repayment stays an exact integer when a
+ * loan's total repayment is too big to store (Long.MAX_VALUE), stopping at
+ * Long.MAX_VALUE and coming back to the exact sum once that loan is gone. A
+ * sum that had overflowed into a REAL would not come back exactly.
+ */
+public class ClientSummaryTest extends AndroidTestCase {
+
+    private static final String DATABASE = "client_summary_test";
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final long WEEK_MS = 7 * DAY_MS;
+
+    private final long mNow = System.currentTimeMillis();
+    private LoanSharkrDbAdapter mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE);
+        mDb = new LoanSharkrDbAdapter(getContext(), DATABASE).open();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        getContext().deleteDatabase(DATABASE);
+        super.tearDown();
+    }
+
+    public void testTooBigTotalSaturates() {
+        long client = mDb.createClient("Fat Tony", "555 0101", "", null);
+        long small = mDb.createClientLoan(client, 150000, 1000, mNow, mNow + 4 * WEEK_MS);
+        // a thousand percent a week for a year
+        long huge = mDb.createClientLoan(client, 100000000000L, 100000, mNow, mNow + 52 * WEEK_MS);
+        assertEquals(Long.MAX_VALUE, totalRepayment(client, huge));
+        assertEquals(Long.MAX_VALUE, projectedRepayment(client));
+        assertEquals(0, mDb.checkClientSummary(false));
+
+        // a second client that is too big adds up to too big, not an error
+        long other = mDb.createClient("Johnny Two Times", "555 0102", "", null);
+        mDb.createClientLoan(other, 100000000000L, 100000, mNow, mNow + 52 * WEEK_MS);
+        Cursor totals = mDb.fetchLoanTotals();
+        try {
+            assertEquals(Long.MAX_VALUE,
+                    totals.getLong(totals.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PROJECTEDREPAYMENT)));
+        }
+        finally {
+            totals.close();
+        }
+
+        // closing the loan adds up the rest again
+        assertTrue(mDb.updateClientLoan(huge, 100000000000L, 100000, mNow + 52 * WEEK_MS,
+                LoanSharkrDbAdapter.LOAN_STATUS_BAD));
+        assertEquals(totalRepayment(client, small), projectedRepayment(client));
+        assertEquals(0, mDb.checkClientSummary(false));
+
+        assertTrue(mDb.updateClientLoan(huge, 100000000000L, 100000, mNow + 52 * WEEK_MS,
+                LoanSharkrDbAdapter.LOAN_STATUS_OPEN));
+        assertEquals(Long.MAX_VALUE, projectedRepayment(client));
+        assertTrue(mDb.deleteLoan(huge));
+        assertEquals(totalRepayment(client, small), projectedRepayment(client));
+        assertEquals(0, mDb.checkClientSummary(false));
+    }
+
+    private long totalRepayment(long clientId, long loanId) {
+        Cursor c = mDb.fetchAllLoansFromClient(clientId, false);
+        try {
+            int id = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_ROWID);
+            while (c.moveToNext()) {
+                if (c.getLong(id) == loanId) {
+                    return c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_TOTALREPAYMENT));
+                }
+            }
+        }
+        finally {
+            c.close();
+        }
+        fail("no open loan " + loanId);
+        return 0;
+    }
+
+    private long projectedRepayment(long clientId) {
+        Cursor c = mDb.fetchAllClientsWithLoanSummary(mNow);
+        try {
+            int id = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_ROWID);
+            int projected = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PROJECTEDREPAYMENT);
+            while (c.moveToNext()) {
+                if (c.getLong(id) == clientId) {
+                    return c.getLong(projected);
+                }
+            }
+        }
+        finally {
+            c.close();
+        }
+        fail("no client " + clientId);
+        return 0;
+    }
+}
@@ -0,0 +1,258 @@
+package com.djpsoft.loansharkr.tests;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Calendar;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.djpsoft.loansharkr.CsvImporter;
+import com.djpsoft.loansharkr.LoanSharkrDbAdapter;
+import com.djpsoft.loansharkr.R;
+
+/**
+ * Imports small CSV files and checks what was stored and which records were
+ * reported, and on which line.
+ */
+public class CsvImporterTest extends AndroidTestCase {
+
+    private static final String DATABASE = "csv_importer_test";
+    private static final String STATUS_INDEX = "loans_status_maturity";
+
+    // enough loans to make a file imported as a large bulk insert
+    private static final int LARGE_FILE_LOANS = 40000;
+
+    /**
+     * Records the errors reported, as {line, message id}
+     */
+    private static class RecordingListener implements CsvImporter.Listener {
+        final ArrayList<long[]> mErrors = new ArrayList<long[]>();
+        long mRecords;
+
+        public void onProgress(long records, long clients, long loans) {
+            mRecords = records;
+        }
+
+        public void onRecordError(long line, int messageId) {
+            mErrors.add(new long[] { line, messageId });
+        }
+    }
+
+    private LoanSharkrDbAdapter mDb;
+    private RecordingListener mListener;
+    private CsvImporter mImporter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE);
+        mDb = new LoanSharkrDbAdapter(getContext(), DATABASE).open();
+        mListener = new RecordingListener();
+        mImporter = new CsvImporter(mDb, CsvImporter.DEFAULT_BATCH_SIZE, mListener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        getContext().deleteDatabase(DATABASE);
+        super.tearDown();
+    }
+
+    public void testQuotedFields() throws IOException {
+        importCsv("client,\"Smith, John\",\"555 \"\"0100\"\"\",\"owes \"\"lots\"\"\r\nsee, also\"\r\n"
+                + "loan,\"1,000.00\",10,2020-01-01,2020-02-01\r\n"
+                + "\"loan\",\"100.50\",\"2.5\",\"2020-01-01\",\"2020-02-01\",\"paid\"\r\n");
+
+        Cursor c = mDb.fetchAllClients();
+        try {
+            assertEquals(1, c.getCount());
+            c.moveToFirst();
+            assertEquals("Smith, John", c.getString(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_CLIENT)));
+            assertEquals("555 \"0100\"", c.getString(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHONE)));
+            assertEquals("owes \"lots\"\r\nsee, also",
+                    c.getString(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_NOTES)));
+        }
+        finally {
+            c.close();
+        }
+        // "1,000.00" is one field, but not a number
+        assertErrors(new long[] { 3, R.string.error_loan_edit_form });
+        assertEquals(1, mImporter.getLoanCount());
+        assertLoan(LoanSharkrDbAdapter.LOAN_STATUS_PAID, 10050, 250, date(2020, 1, 1), date(2020, 2, 1));
+    }
+
+    public void testLoanBeforeClient() throws IOException {
+        importCsv("loan,100,10,2020-01-01,2020-02-01\n"
+                + "client,Fat Tony,555 0101,\n"
+                + "loan,100,10,2020-01-01,2020-02-01\n");
+
+        assertErrors(new long[] { 1, R.string.error_import_no_client });
+        assertEquals(1, mImporter.getClientCount());
+        assertEquals(1, mImporter.getLoanCount());
+    }
+
+    public void testBadDateOrStatus() throws IOException {
+        importCsv("client,Fat Tony,555 0101,\n"
+                + "loan,100,10,2020-13-01,2020-02-01\n"
+                + "loan,100,10,2020-01-01,next week\n"
+                + "loan,100,10,,2020-02-01\n"
+                + "loan,100,10,2020-01-01,2020-02-01,lost\n"
+                + "loan,100,10,1577836800000,1580515200000,BAD\n");
+
+        assertErrors(new long[] { 2, R.string.error_import_date }, new long[] { 3, R.string.error_import_date },
+                new long[] { 4, R.string.error_import_date }, new long[] { 5, R.string.error_import_status });
+        assertEquals(1, mImporter.getLoanCount());
+        assertLoan(LoanSharkrDbAdapter.LOAN_STATUS_BAD, 10000, 1000, 1577836800000L, 1580515200000L);
+    }
+
+    public void testErrorsAreReportedPerRecord() throws IOException {
+        importCsv("client,Fat Tony,555 0101,\n"
+                + "\n"
+                + "lender,Big Tony,,\n"
+                + "loan,100,10,2020-01-01\n"
+                + "loan,,10,2020-01-01,2020-02-01\n"
+                + "loan,100,10,2020-01-01,2020-02-01\n"
+                + "client,,555 0102,\n"
+                + "loan,100,10,2020-01-01,2020-02-01\n"
+                + "client,Nicky\n"
+                + "client,\"Big\n"
+                + "Tony\",555 0103,\n"
+                + "loan,100,x,2020-01-01,2020-02-01\n"
+                + "loan,100,10,2020-01-01,2020-02-01");
+
+        assertErrors(new long[] { 3, R.string.error_import_record_type },
+                new long[] { 4, R.string.error_import_field_count },
+                new long[] { 5, R.string.error_loan_edit_form_no_debt },
+                new long[] { 7, R.string.error_client_edit_form_no_client },
+                // the loans of a client that failed are not given to the one before
+                new long[] { 8, R.string.error_import_no_client },
+                new long[] { 9, R.string.error_import_field_count },
+                // the quoted line break moves the lines of the records after it
+                new long[] { 12, R.string.error_loan_edit_form });
+        assertEquals(11, mListener.mRecords);
+        assertEquals(2, mImporter.getClientCount());
+        assertEquals(2, mImporter.getLoanCount());
+        assertEquals(7, mImporter.getErrorCount());
+    }
+
+    public void testLargeFileKeepsStatusIndex() throws IOException {
+        File file = new File(getContext().getCacheDir(), "csv_importer_test.csv");
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write("client,Fat Tony,555 0101,\n");
+            for (int i = 0; i < LARGE_FILE_LOANS; i++) {
+                out.write("loan,100,10,2020-01-01,2020-02-01,paid\n");
+            }
+        }
+        finally {
+            out.close();
+        }
+        try {
+            mImporter.importFile(file);
+        }
+        finally {
+            file.delete();
+        }
+
+        assertEquals(0, mImporter.getErrorCount());
+        assertEquals(LARGE_FILE_LOANS, mImporter.getLoanCount());
+        mDb.close();
+        assertTrue(hasStatusIndex());
+        mDb.open();
+    }
+
+    public void testOpenRestoresStatusIndex() {
+        // as left by a large import that was killed before it finished
+        mDb.close();
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(getContext().getDatabasePath(DATABASE).getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            db.execSQL("drop index " + STATUS_INDEX);
+        }
+        finally {
+            db.close();
+        }
+        assertFalse(hasStatusIndex());
+
+        mDb.open();
+        mDb.close();
+        assertTrue(hasStatusIndex());
+        mDb.open();
+    }
+
+    private boolean hasStatusIndex() {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(getContext().getDatabasePath(DATABASE).getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            Cursor c = db.rawQuery("select name from sqlite_master where type = 'index' and name = ?",
+                    new String[] { STATUS_INDEX });
+            try {
+                return c.getCount() == 1;
+            }
+            finally {
+                c.close();
+            }
+        }
+        finally {
+            db.close();
+        }
+    }
+
+    private void importCsv(String csv) throws IOException {
+        mImporter.importFrom(new StringReader(csv));
+    }
+
+    private void assertErrors(long[]... expected) {
+        assertEquals(expected.length, mListener.mErrors.size());
+        for (int i = 0; i < expected.length; i++) {
+            long[] error = mListener.mErrors.get(i);
+            assertEquals("error " + i + " line", expected[i][0], error[0]);
+            assertEquals("error " + i + " message", expected[i][1], error[1]);
+        }
+    }
+
+    /**
+     * Check the only loan with a status (open, or one of the closed ones)
+     */
+    private void assertLoan(int status, long debt, long weeklyInterest, long date, long maturityDate) {
+        Cursor clients = mDb.fetchAllClients();
+        long clientId;
+        try {
+            assertTrue(clients.moveToFirst());
+            clientId = clients.getLong(clients.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_ROWID));
+        }
+        finally {
+            clients.close();
+        }
+        Cursor c = mDb.fetchAllLoansFromClient(clientId, status != LoanSharkrDbAdapter.LOAN_STATUS_OPEN);
+        try {
+            assertEquals(1, c.getCount());
+            c.moveToFirst();
+            assertEquals(status, c.getInt(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_STATUS)));
+            assertEquals(debt, c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DEBT)));
+            assertEquals(weeklyInterest, c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_WEEKLYINTEREST)));
+            assertEquals(date, c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DATE)));
+            assertEquals(maturityDate, c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_MATURITYDATE)));
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return local midnight at the start of a date, as yyyy-MM-dd is read
+     */
+    private static long date(int year, int month, int day) {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(year, month - 1, day);
+        return cal.getTimeInMillis();
+    }
+}
@@ -0,0 +1,196 @@
+package com.djpsoft.loansharkr.tests;
+
+import java.io.File;
+import java.util.Arrays;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.djpsoft.loansharkr.LoanSharkrDbAdapter;
+import com.djpsoft.loansharkr.Money;
+
+/**
+ * Upgrades a populated version 4 database (the oldest that is migrated
+ * rather than recreated) through every migration step and checks that its
+ * clients, photos and loans come through intact.
+ */
+public class DatabaseUpgradeTest extends AndroidTestCase {
+
+    private static final String DATABASE = "upgrade_test";
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final long WEEK_MS = 7 * DAY_MS;
+
+    // the version 4 schema, as shipped
+    private static final String V4_CREATE_CLIENTS =
+        "create table clients (_id integer primary key autoincrement, "
+        + "client text not null, phone text not null, notes text not null, photo blob);";
+
+    private static final String V4_CREATE_LOANS =
+        "create table loans (_id integer primary key autoincrement, "
+        + "client_id integer, debt integer, weekly_interest integer, date integer, maturity_date integer, status integer);";
+
+    private static final byte[] PHOTO = { (byte) 0xff, (byte) 0xd8, 1, 2, 3, 4, (byte) 0xff, (byte) 0xd9 };
+
+    private final long mNow = System.currentTimeMillis();
+    private LoanSharkrDbAdapter mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE);
+        createVersion4();
+        mDb = new LoanSharkrDbAdapter(getContext(), DATABASE).open();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        getContext().deleteDatabase(DATABASE);
+        super.tearDown();
+    }
+
+    private void createVersion4() {
+        File path = getContext().getDatabasePath(DATABASE);
+        path.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null);
+        try {
+            db.execSQL(V4_CREATE_CLIENTS);
+            db.execSQL(V4_CREATE_LOANS);
+            db.execSQL("insert into clients (_id, client, phone, notes, photo) values (?, ?, ?, ?, ?)",
+                    new Object[] { 1, "Fat Tony", "555 0101", "Owes the boss", PHOTO });
+            db.execSQL("insert into clients (_id, client, phone, notes) values (?, ?, ?, ?)",
+                    new Object[] { 2, "Johnny Two Times", "555 0102", "" });
+            // an open loan, an overdue loan, a paid loan and a bad loan
+            insertLoan(db, 1, 1, 150000, 1000, mNow - 10 * DAY_MS, mNow + 4 * WEEK_MS, LoanSharkrDbAdapter.LOAN_STATUS_OPEN);
+            insertLoan(db, 2, 1, 2550, 250, mNow - 30 * DAY_MS, mNow - 2 * DAY_MS, LoanSharkrDbAdapter.LOAN_STATUS_OPEN);
+            insertLoan(db, 3, 1, 99999, 1500, mNow - 90 * DAY_MS, mNow - 60 * DAY_MS, LoanSharkrDbAdapter.LOAN_STATUS_PAID);
+            insertLoan(db, 4, 2, 100, 5000, mNow - 20 * DAY_MS, mNow - 10 * DAY_MS, LoanSharkrDbAdapter.LOAN_STATUS_BAD);
+            // left behind by a client deleted before loans were deleted with it
+            insertLoan(db, 5, 99, 100, 100, mNow, mNow + WEEK_MS, LoanSharkrDbAdapter.LOAN_STATUS_OPEN);
+            db.setVersion(4);
+        }
+        finally {
+            db.close();
+        }
+    }
+
+    private static void insertLoan(SQLiteDatabase db, long id, long clientId, long debt, long weeklyInterest,
+            long date, long maturityDate, int status) {
+        db.execSQL("insert into loans (_id, client_id, debt, weekly_interest, date, maturity_date, status) "
+                + "values (?, ?, ?, ?, ?, ?, ?)",
+                new Object[] { id, clientId, debt, weeklyInterest, date, maturityDate, status });
+    }
+
+    public void testClientsSurvive() {
+        Cursor c = mDb.fetchClient(1);
+        try {
+            assertEquals("Fat Tony", c.getString(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_CLIENT)));
+            assertEquals("555 0101", c.getString(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHONE)));
+            assertEquals("Owes the boss", c.getString(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_NOTES)));
+            assertEquals(1, c.getInt(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHOTOVERSION)));
+        }
+        finally {
+            c.close();
+        }
+        c = mDb.fetchClient(2);
+        try {
+            assertEquals("Johnny Two Times", c.getString(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_CLIENT)));
+            assertEquals(0, c.getInt(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHOTOVERSION)));
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    public void testPhotosMoveToThePhotoTable() {
+        assertTrue(Arrays.equals(PHOTO, mDb.fetchPhoto(1)));
+        assertNull(mDb.fetchPhoto(2));
+    }
+
+    public void testLoansSurvive() {
+        assertLoan(1, 1, 150000, 1000, mNow - 10 * DAY_MS, mNow + 4 * WEEK_MS, LoanSharkrDbAdapter.LOAN_STATUS_OPEN);
+        assertLoan(2, 1, 2550, 250, mNow - 30 * DAY_MS, mNow - 2 * DAY_MS, LoanSharkrDbAdapter.LOAN_STATUS_OPEN);
+        assertLoan(3, 1, 99999, 1500, mNow - 90 * DAY_MS, mNow - 60 * DAY_MS, LoanSharkrDbAdapter.LOAN_STATUS_PAID);
+        assertLoan(4, 2, 100, 5000, mNow - 20 * DAY_MS, mNow - 10 * DAY_MS, LoanSharkrDbAdapter.LOAN_STATUS_BAD);
+    }
+
+    private void assertLoan(long id, long clientId, long debt, long weeklyInterest, long date, long maturityDate,
+            int status) {
+        Cursor c = mDb.fetchAllLoansFromClient(clientId, status != LoanSharkrDbAdapter.LOAN_STATUS_OPEN);
+        try {
+            int idIndex = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_ROWID);
+            while (c.moveToNext() && c.getLong(idIndex) != id) {
+            }
+            assertFalse("loan " + id + " is missing", c.isAfterLast());
+            assertEquals(debt, c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DEBT)));
+            assertEquals(weeklyInterest, c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_WEEKLYINTEREST)));
+            assertEquals(date, c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DATE)));
+            assertEquals(maturityDate, c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_MATURITYDATE)));
+            assertEquals(status, c.getInt(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_STATUS)));
+            // version 10 starts every balance at the debt, version 13 works
+            // out the total repayment from it
+            assertEquals(debt, c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_BALANCE)));
+            assertEquals(date, c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_BALANCEDATE)));
+            assertEquals(Money.CalculateTotalRepayment(date, maturityDate, debt, weeklyInterest),
+                    c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_TOTALREPAYMENT)));
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    public void testOrphanedLoansAreRemoved() {
+        Cursor c = mDb.fetchClientLoan(5);
+        try {
+            assertEquals(0, c.getCount());
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    public void testSummaryIsFilled() {
+        assertEquals(0, mDb.checkClientSummary(false));
+        Cursor c = mDb.fetchAllClientsWithLoanSummary(0);
+        try {
+            assertEquals(2, c.getCount());
+            while (c.moveToNext()) {
+                if (c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_ROWID)) != 1) {
+                    continue;
+                }
+                assertEquals(2, c.getInt(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_OPENLOANCOUNT)));
+                assertEquals(1, c.getInt(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PAIDLOANCOUNT)));
+                assertEquals(150000 + 2550,
+                        c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PRINCIPALOUTSTANDING)));
+                assertEquals(Money.CalculateTotalRepayment(mNow - 10 * DAY_MS, mNow + 4 * WEEK_MS, 150000, 1000)
+                        + Money.CalculateTotalRepayment(mNow - 30 * DAY_MS, mNow - 2 * DAY_MS, 2550, 250),
+                        c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PROJECTEDREPAYMENT)));
+            }
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    public void testClientsAreSearchable() {
+        Cursor c = mDb.searchClients("john", 0, 10);
+        try {
+            assertEquals(1, c.getCount());
+            c.moveToFirst();
+            assertEquals(2, c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_ROWID)));
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    public void testUpgradedDatabaseCanBeWritten() {
+        long loanId = mDb.createClientLoan(2L, 5000, 500, mNow, mNow + WEEK_MS);
+        assertTrue(loanId > 5);
+        assertTrue(mDb.deleteClient(1));
+        assertEquals(0, mDb.checkClientSummary(false));
+        assertNull(mDb.fetchPhoto(1));
+    }
+}
@@ -0,0 +1,71 @@
+package com.djpsoft.loansharkr.tests;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.djpsoft.loansharkr.LoanSharkrDbAdapter;
+
+/**
+ * Checks which loan edits take a loan out of the saved due loans: changing
+ * its maturity date or status does, saving the edit form with only the debt
+ * or interest changed does not.
+ */
+public class DueLoansTest extends AndroidTestCase {
+
+    private static final String DATABASE = "due_loans_test";
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    private final long mNow = System.currentTimeMillis();
+    private LoanSharkrDbAdapter mDb;
+    private long mLoan;
+    private long mMaturityDate;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE);
+        mDb = new LoanSharkrDbAdapter(getContext(), DATABASE).open();
+        long client = mDb.createClient("Fat Tony", "555 0101", "", null);
+        mMaturityDate = mNow - 2 * DAY_MS;
+        mLoan = mDb.createClientLoan(client, 2550, 250, mNow - 30 * DAY_MS, mMaturityDate);
+        refresh();
+        assertEquals(1, overdueCount());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        getContext().deleteDatabase(DATABASE);
+        super.tearDown();
+    }
+
+    public void testEditingTheDebtKeepsTheLoanDue() {
+        assertTrue(mDb.updateClientLoan(mLoan, 5000, 500, mMaturityDate, LoanSharkrDbAdapter.LOAN_STATUS_OPEN));
+        assertEquals(1, overdueCount());
+    }
+
+    public void testClosingTheLoanTakesItOut() {
+        assertTrue(mDb.updateClientLoan(mLoan, 2550, 250, mMaturityDate, LoanSharkrDbAdapter.LOAN_STATUS_PAID));
+        assertEquals(0, overdueCount());
+    }
+
+    public void testMovingTheMaturityTakesItOut() {
+        assertTrue(mDb.updateClientLoan(mLoan, 2550, 250, mNow + 30 * DAY_MS, LoanSharkrDbAdapter.LOAN_STATUS_OPEN));
+        assertEquals(0, overdueCount());
+    }
+
+    private void refresh() {
+        mDb.refreshDueLoans(mNow - DAY_MS, mNow + 7 * DAY_MS);
+    }
+
+    private int overdueCount() {
+        Cursor c = mDb.fetchDueLoanCounts();
+        try {
+            return c.getInt(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_OVERDUECOUNT));
+        }
+        finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.djpsoft.loansharkr.tests;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.djpsoft.loansharkr.CsvImporter;
+import com.djpsoft.loansharkr.LoanSharkrDbAdapter;
+
+/**
+ * Times CsvImporter on a generated file of a million loans (100,000
+ * clients with ten loans each), which should import in well under a
+ * minute. The file uses both date forms, quoted fields and every status,
+ * and is big enough to be imported as a large bulk insert (the time includes
+ * building the loans status index again). Writing the file is not timed. The time and rate are written to logcat
+ * and to import.txt in the files directory.
+ *
+ * The loans are imported into a database of their own, which is removed
+ * with the file when the benchmark finishes. Run it with:
+ *
+ * <pre>
+ * adb shell am instrument -w -e class com.djpsoft.loansharkr.tests.ImportBenchmark \
+ *     com.djpsoft.loansharkr.tests/android.test.InstrumentationTestRunner
+ * </pre>
+ */
+public class ImportBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "ImportBenchmark";
+    private static final String DATABASE = "import_benchmark";
+    private static final String CSV_FILE = "import_benchmark.csv";
+    private static final String REPORT_FILE = "import.txt";
+
+    private static final int CLIENTS = 100000;
+    private static final int LOANS_PER_CLIENT = 10;
+    private static final long SEED = 1;
+    private static final long MAX_IMPORT_MS = 60000;
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final long WEEK_MS = 7 * DAY_MS;
+    private static final int HISTORY_DAYS = 3 * 365;
+    private static final String[] CLOSED_STATUSES = { "paid", "paid", "paid", "bad", "open" };
+
+    private File mCsv;
+    private long mErrors;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE);
+        mCsv = new File(getContext().getCacheDir(), CSV_FILE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(DATABASE);
+        mCsv.delete();
+        super.tearDown();
+    }
+
+    public void testImport() throws IOException {
+        writeCsv(mCsv, System.currentTimeMillis());
+        LoanSharkrDbAdapter db = new LoanSharkrDbAdapter(getContext(), DATABASE).open();
+        try {
+            CsvImporter importer = new CsvImporter(db, CsvImporter.DEFAULT_BATCH_SIZE, new CsvImporter.Listener() {
+                public void onProgress(long records, long clients, long loans) {
+                }
+
+                public void onRecordError(long line, int messageId) {
+                    mErrors++;
+                }
+            });
+            long start = System.nanoTime();
+            importer.importFile(mCsv);
+            long ms = (System.nanoTime() - start) / 1000000;
+
+            assertEquals(0, mErrors);
+            assertEquals(CLIENTS, importer.getClientCount());
+            assertEquals((long) CLIENTS * LOANS_PER_CLIENT, importer.getLoanCount());
+            report(importer.getClientCount(), importer.getLoanCount(), ms);
+            assertTrue("import took " + ms + " ms", ms < MAX_IMPORT_MS);
+        }
+        finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Write the clients and loans, the same seed and time always give the
+     * same file
+     *
+     * @param file the file to write
+     * @param now the time the loans are generated relative to
+     */
+    static void writeCsv(File file, long now) throws IOException {
+        Random random = new Random(SEED);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            for (int i = 1; i <= CLIENTS; i++) {
+                out.write("client,\"" + PortfolioGenerator.clientName(i) + "\",04"
+                        + (10000000 + random.nextInt(90000000)) + ",\n");
+                for (int j = 0; j < LOANS_PER_CLIENT; j++) {
+                    long cents = 10000 + random.nextInt(10000000);
+                    int interest = 100 + random.nextInt(1901);
+                    long date = now - (long) (random.nextDouble() * HISTORY_DAYS * DAY_MS);
+                    long maturityDate = date + (1 + random.nextInt(52)) * WEEK_MS;
+                    String status = maturityDate < now ? CLOSED_STATUSES[random.nextInt(CLOSED_STATUSES.length)]
+                            : "open";
+                    out.write("loan," + cents / 100 + "." + twoDigits(cents % 100) + "," + interest / 100 + "."
+                            + twoDigits(interest % 100) + ",");
+                    // both date forms, and a loan of each client with no status
+                    if (j % 2 == 0) {
+                        out.write(dateFormat.format(new Date(date)) + "," + dateFormat.format(new Date(maturityDate)));
+                    }
+                    else {
+                        out.write(date + "," + maturityDate);
+                    }
+                    out.write(j == 0 && status.equals("open") ? "\n" : "," + status + "\n");
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static String twoDigits(long n) {
+        return n < 10 ? "0" + n : Long.toString(n);
+    }
+
+    private void report(long clients, long loans, long ms) {
+        String line = String.format("%d clients and %d loans in %d ms, %.0f loans/s", clients, loans, ms,
+                loans * 1000.0 / Math.max(ms, 1));
+        Log.i(TAG, line);
+        File file = new File(getContext().getFilesDir(), REPORT_FILE);
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new FileWriter(file));
+            out.println(line);
+            if (out.checkError()) {
+                Log.e(TAG, "Could not write " + file);
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Could not write " + file, e);
+        }
+        finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+}
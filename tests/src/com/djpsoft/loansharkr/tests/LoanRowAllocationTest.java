@@ -0,0 +1,126 @@
+package com.djpsoft.loansharkr.tests;
+
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Debug;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.view.View;
+import android.widget.CursorAdapter;
+
+import com.djpsoft.loansharkr.ClientLoans;
+import com.djpsoft.loansharkr.LoanSharkrDbAdapter;
+import com.djpsoft.loansharkr.PageLoader;
+
+/**
+ * Counts the objects allocated while the loan list binds its rows over and
+ * over, as it does while the list is scrolled. The rows cover every status
+ * and a loan whose total repayment is too big to store. A row creates no
+ * Strings to display (every field is written into its own buffers and the
+ * overflow text is made once), so binding must allocate nothing at all.
+ *
+ * The loans are in a database of their own, the activity is started for a
+ * client that does not exist so its own list stays empty.
+ */
+public class LoanRowAllocationTest extends ActivityInstrumentationTestCase2<ClientLoans> {
+
+    private static final String TAG = "LoanRowAllocationTest";
+    private static final String DATABASE = "loan_row_allocation_test";
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final long WEEK_MS = 7 * DAY_MS;
+
+    private static final int BINDS = 10000;
+    private static final int STRINGS_PER_BIND = 0;
+
+    private LoanSharkrDbAdapter mDb;
+    private long mClientId;
+    private long mOverflowLoanId;
+    private int mAllocations;
+
+    public LoanRowAllocationTest() {
+        super("com.djpsoft.loansharkr", ClientLoans.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Context context = getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        mDb = new LoanSharkrDbAdapter(context, DATABASE).open();
+
+        long now = System.currentTimeMillis();
+        mClientId = mDb.createClient("Fat Tony", "555 0101", "", null);
+        mDb.createClientLoan(mClientId, 150000, 1000, now - 10 * DAY_MS, now + 4 * WEEK_MS);
+        mDb.createClientLoan(mClientId, 2550, 250, now - 30 * DAY_MS, now - 2 * DAY_MS);
+        long paid = mDb.createClientLoan(mClientId, 99999, 1500, now - 90 * DAY_MS, now - 60 * DAY_MS);
+        mDb.updateClientLoan(paid, 99999, 1500, now - 60 * DAY_MS, LoanSharkrDbAdapter.LOAN_STATUS_PAID);
+        long bad = mDb.createClientLoan(mClientId, 100, 5000, now - 20 * DAY_MS, now - 10 * DAY_MS);
+        mDb.updateClientLoan(bad, 100, 5000, now - 10 * DAY_MS, LoanSharkrDbAdapter.LOAN_STATUS_BAD);
+        // $100 million at 50% a week for ten years
+        mOverflowLoanId = mDb.createClientLoan(mClientId, 10000000000L, 5000, now, now + 520 * WEEK_MS);
+
+        Intent intent = new Intent();
+        intent.putExtra(LoanSharkrDbAdapter.KEY_ROWID, -1L);
+        intent.putExtra(ClientLoans.SHOW_CLOSED, true);
+        setActivityIntent(intent);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        getInstrumentation().getTargetContext().deleteDatabase(DATABASE);
+        super.tearDown();
+    }
+
+    public void testBindDoesNotAllocate() {
+        final ClientLoans activity = getActivity();
+        final CursorAdapter adapter = (CursorAdapter) activity.getListAdapter();
+        final Cursor loans = mDb.fetchLoansPage(mClientId, true, null, PageLoader.PAGE_SIZE);
+        try {
+            assertEquals(5, loans.getCount());
+            assertOverflowLoanIsListed(loans);
+
+            getInstrumentation().runOnMainSync(new Runnable() {
+                public void run() {
+                    int rows = loans.getCount();
+                    View[] views = new View[rows];
+                    // the first bind finds the columns, so is not counted
+                    for (int i = 0; i < rows; i++) {
+                        loans.moveToPosition(i);
+                        views[i] = adapter.newView(activity, loans, activity.getListView());
+                        adapter.bindView(views[i], activity, loans);
+                    }
+
+                    Debug.resetThreadAllocCount();
+                    Debug.startAllocCounting();
+                    for (int i = 0; i < BINDS; i++) {
+                        int row = i % rows;
+                        loans.moveToPosition(row);
+                        adapter.bindView(views[row], activity, loans);
+                    }
+                    Debug.stopAllocCounting();
+                    mAllocations = Debug.getThreadAllocCount();
+                }
+            });
+        }
+        finally {
+            loans.close();
+        }
+        Log.i(TAG, mAllocations + " allocations in " + BINDS + " binds");
+        assertEquals(BINDS * STRINGS_PER_BIND, mAllocations);
+    }
+
+    private void assertOverflowLoanIsListed(Cursor loans) {
+        int id = loans.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_ROWID);
+        int totalRepayment = loans.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_TOTALREPAYMENT);
+        while (loans.moveToNext()) {
+            if (loans.getLong(id) == mOverflowLoanId) {
+                assertEquals(Long.MAX_VALUE, loans.getLong(totalRepayment));
+                return;
+            }
+        }
+        fail("loan " + mOverflowLoanId + " is missing");
+    }
+}
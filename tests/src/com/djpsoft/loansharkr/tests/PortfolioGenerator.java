@@ -0,0 +1,178 @@
+package com.djpsoft.loansharkr.tests;
+
+import java.util.Random;
+
+import com.djpsoft.loansharkr.CsvImporter;
+import com.djpsoft.loansharkr.LoanSharkrDbAdapter;
+
+/**
+ * Generates clients and loans with made up but plausible values, so that
+ * the adapter can be timed with far more data than anyone would type in. The
+ * same seed and settings always give the same clients and loans.
+ *
+ * The number of loans per client is geometric, so most clients have a few
+ * loans and a few clients have many. Loans start at random over the
+ * history before now and run for a random number of weeks. Loans that
+ * have not matured yet are open, the ones that have are mostly paid, with
+ * some bad and some left open (overdue).
+ */
+public class PortfolioGenerator {
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final long WEEK_MS = 7 * DAY_MS;
+
+    private final Random mRandom;
+    private final long mNow;
+
+    private double mLoansPerClient = 10;
+    private double mOverdueFraction = 0.1;
+    private double mBadFraction = 0.05;
+    private long mMinDebt = 10000;
+    private long mMaxDebt = 10000000;
+    private int mMinWeeklyInterest = 100;
+    private int mMaxWeeklyInterest = 2000;
+    private int mMaxTermWeeks = 52;
+    private int mHistoryDays = 3 * 365;
+
+    private int mClients;
+    private long mLoans;
+
+    /**
+     * Constructor
+     *
+     * @param seed the seed of the random values
+     * @param now the time the loans are generated relative to, which must
+     * also be the same to get the same loans
+     */
+    public PortfolioGenerator(long seed, long now) {
+        mRandom = new Random(seed);
+        mNow = now;
+    }
+
+    /**
+     * @param loansPerClient the mean number of loans per client (default 10)
+     */
+    public void setLoansPerClient(double loansPerClient) {
+        mLoansPerClient = loansPerClient;
+    }
+
+    /**
+     * @param overdueFraction the fraction of matured loans left open
+     * (default 0.1)
+     * @param badFraction the fraction of matured loans that are bad
+     * (default 0.05), the rest are paid
+     */
+    public void setMaturedStatus(double overdueFraction, double badFraction) {
+        mOverdueFraction = overdueFraction;
+        mBadFraction = badFraction;
+    }
+
+    /**
+     * Debts are spread evenly over the orders of magnitude between the
+     * minimum and maximum
+     *
+     * @param minDebt the smallest debt in cents (default $100)
+     * @param maxDebt the largest debt in cents (default $100,000)
+     */
+    public void setDebtRange(long minDebt, long maxDebt) {
+        mMinDebt = minDebt;
+        mMaxDebt = maxDebt;
+    }
+
+    /**
+     * @param minWeeklyInterest the lowest weekly interest rate in hundredths
+     * of a percent (default 1%)
+     * @param maxWeeklyInterest the highest (default 20%)
+     */
+    public void setWeeklyInterestRange(int minWeeklyInterest, int maxWeeklyInterest) {
+        mMinWeeklyInterest = minWeeklyInterest;
+        mMaxWeeklyInterest = maxWeeklyInterest;
+    }
+
+    /**
+     * @param maxTermWeeks the longest loan in weeks (default 52)
+     * @param historyDays how far before now loans start (default 3 years)
+     */
+    public void setDates(int maxTermWeeks, int historyDays) {
+        mMaxTermWeeks = maxTermWeeks;
+        mHistoryDays = historyDays;
+    }
+
+    /**
+     * Generate more clients, each with its loans. Clients are named in the
+     * order they are generated, continuing from any earlier call.
+     *
+     * @param db an open database adapter
+     * @param clients the number of clients to add
+     */
+    public void generate(LoanSharkrDbAdapter db, int clients) {
+        LoanSharkrDbAdapter.BulkInserter inserter = db.beginBulkInsert(CsvImporter.DEFAULT_BATCH_SIZE);
+        try {
+            // P(n loans) = p (1 - p)^n has a mean of (1 - p) / p
+            double logFailure = Math.log(1 - 1 / (mLoansPerClient + 1));
+            for (int i = 0; i < clients; i++) {
+                mClients++;
+                long clientId = inserter.insertClient(clientName(mClients), phone(), "");
+                int loans = (int) (Math.log(1 - mRandom.nextDouble()) / logFailure);
+                for (int j = 0; j < loans; j++) {
+                    insertLoan(inserter, clientId);
+                }
+            }
+        }
+        finally {
+            inserter.close();
+        }
+    }
+
+    private void insertLoan(LoanSharkrDbAdapter.BulkInserter inserter, long clientId) {
+        double magnitude = Math.log(mMaxDebt / (double) mMinDebt);
+        long debt = Math.round(mMinDebt * Math.exp(mRandom.nextDouble() * magnitude));
+        long weeklyInterest = mMinWeeklyInterest + mRandom.nextInt(mMaxWeeklyInterest - mMinWeeklyInterest + 1);
+        long date = mNow - (long) (mRandom.nextDouble() * mHistoryDays * DAY_MS);
+        long maturityDate = date + (1 + mRandom.nextInt(mMaxTermWeeks)) * WEEK_MS;
+
+        int status = LoanSharkrDbAdapter.LOAN_STATUS_OPEN;
+        if (maturityDate < mNow) {
+            double r = mRandom.nextDouble();
+            if (r >= mOverdueFraction + mBadFraction) {
+                status = LoanSharkrDbAdapter.LOAN_STATUS_PAID;
+            }
+            else if (r >= mOverdueFraction) {
+                status = LoanSharkrDbAdapter.LOAN_STATUS_BAD;
+            }
+        }
+        inserter.insertLoan(clientId, debt, weeklyInterest, date, maturityDate, status);
+        mLoans++;
+    }
+
+    /**
+     * @return the name of the n'th generated client, names sort in the
+     * order they were generated
+     */
+    public static String clientName(int n) {
+        String number = Integer.toString(n);
+        StringBuilder name = new StringBuilder("Client ");
+        for (int i = number.length(); i < 8; i++) {
+            name.append('0');
+        }
+        return name.append(number).toString();
+    }
+
+    private String phone() {
+        return "04" + (10000000 + mRandom.nextInt(90000000));
+    }
+
+    /**
+     * @return the number of clients generated so far
+     */
+    public int getClientCount() {
+        return mClients;
+    }
+
+    /**
+     * @return the number of loans generated so far
+     */
+    public long getLoanCount() {
+        return mLoans;
+    }
+}
@@ -0,0 +1,303 @@
+package com.djpsoft.loansharkr.tests;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.djpsoft.loansharkr.LoanMath;
+import com.djpsoft.loansharkr.LoanSharkrDbAdapter;
+import com.djpsoft.loansharkr.Money;
+import com.djpsoft.loansharkr.PageLoader;
+
+/**
+ * Times the adapter queries and the list building path as the database
+ * grows, to find the paths that slow down faster than the data grows.
+ * Clients and loans are added with PortfolioGenerator in steps of ten
+ * times the clients, each step is timed and a report of latency against
+ * row count is written to logcat and to scaling.txt in the files
+ * directory.
+ *
+ * The rows are generated into a database of their own, which is removed
+ * when the benchmark finishes. Run it with:
+ *
+ * <pre>
+ * adb shell am instrument -w -e class com.djpsoft.loansharkr.tests.ScalingBenchmark \
+ *     com.djpsoft.loansharkr.tests/android.test.InstrumentationTestRunner
+ * </pre>
+ */
+public class ScalingBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "ScalingBenchmark";
+    private static final String DATABASE = "scaling_benchmark";
+    private static final String REPORT_FILE = "scaling.txt";
+
+    private static final int MAX_CLIENTS = 10000;
+    private static final float LOANS_PER_CLIENT = 100;
+    private static final long SEED = 1;
+
+    private static final int FIRST_STEP = 100;
+    // each query is run this many times at each step, the median is reported
+    private static final int REPEATS = 5;
+    // a path is flagged when its time grows this much faster than the rows
+    private static final double SUPERLINEAR = 1.5;
+    // times under this (ms) are too noisy to flag
+    private static final double MIN_FLAGGED_MS = 1;
+    // a prefix of the generated names, see PortfolioGenerator.clientName
+    private static final String SEARCH_QUERY = PortfolioGenerator.clientName(1).substring(0, 11);
+
+    /**
+     * A query or path that is timed at each step
+     */
+    private abstract static class Path {
+        final String mName;
+        final ArrayList<long[]> mResults = new ArrayList<long[]>();
+
+        Path(String name) {
+            mName = name;
+        }
+
+        /**
+         * Run the path once
+         */
+        abstract void run(LoanSharkrDbAdapter db);
+    }
+
+    private long mOverdueThreshold;
+    private long mDueSoonThreshold;
+    // a client in the middle of the generated clients, for its loans
+    private long mClientId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(DATABASE);
+        super.tearDown();
+    }
+
+    public void testScaling() {
+        Date currentDate = Calendar.getInstance().getTime();
+        mOverdueThreshold = LoanMath.OverdueThreshold(currentDate);
+        mDueSoonThreshold = currentDate.getTime() + 3 * 24L * 60 * 60 * 1000;
+        PortfolioGenerator generator = new PortfolioGenerator(SEED, currentDate.getTime());
+        generator.setLoansPerClient(LOANS_PER_CLIENT);
+        Path[] paths = createPaths();
+
+        LoanSharkrDbAdapter db = new LoanSharkrDbAdapter(getContext(), DATABASE).open();
+        try {
+            for (int step = FIRST_STEP; step <= MAX_CLIENTS; step *= 10) {
+                generator.generate(db, step - generator.getClientCount());
+                mClientId = findClient(db, PortfolioGenerator.clientName(generator.getClientCount() / 2));
+                assertTrue(mClientId != -1);
+                long clients = generator.getClientCount();
+                long loans = generator.getLoanCount();
+                Log.i(TAG, "Timing " + clients + " clients and " + loans + " loans");
+                for (Path path : paths) {
+                    path.mResults.add(new long[] { clients, loans, time(db, path) });
+                }
+            }
+        }
+        finally {
+            db.close();
+        }
+        report(paths);
+    }
+
+    private Path[] createPaths() {
+        return new Path[] {
+            new Path("clients.page") {
+                @Override
+                void run(LoanSharkrDbAdapter db) {
+                    Cursor c = db.fetchClientsPage(mOverdueThreshold, LoanSharkrDbAdapter.SORT_BY_NAME, null,
+                            PageLoader.PAGE_SIZE);
+                    try {
+                        bindClients(c);
+                    }
+                    finally {
+                        c.close();
+                    }
+                }
+            },
+            new Path("clients.search") {
+                @Override
+                void run(LoanSharkrDbAdapter db) {
+                    Cursor c = db.searchClients(SEARCH_QUERY, mOverdueThreshold, 100);
+                    try {
+                        assertTrue(bindClients(c) > 0);
+                    }
+                    finally {
+                        c.close();
+                    }
+                }
+            },
+            new Path("loans.page") {
+                @Override
+                void run(LoanSharkrDbAdapter db) {
+                    Cursor c = db.fetchLoansPage(mClientId, true, null, PageLoader.PAGE_SIZE);
+                    try {
+                        bindLoans(c);
+                    }
+                    finally {
+                        c.close();
+                    }
+                }
+            },
+            new Path("loans.totals") {
+                @Override
+                void run(LoanSharkrDbAdapter db) {
+                    db.fetchLoanTotals().close();
+                }
+            },
+            new Path("loans.due") {
+                @Override
+                void run(LoanSharkrDbAdapter db) {
+                    db.refreshDueLoans(mOverdueThreshold, mDueSoonThreshold);
+                    db.fetchDueLoanCounts().close();
+                }
+            },
+            new Path("ledger.scan") {
+                @Override
+                void run(LoanSharkrDbAdapter db) {
+                    Cursor c = db.fetchLedger();
+                    try {
+                        while (c.moveToNext()) {
+                            // read a column so that every window is filled
+                            c.getLong(0);
+                        }
+                    }
+                    finally {
+                        c.close();
+                    }
+                }
+            },
+            new Path("summary.check") {
+                @Override
+                void run(LoanSharkrDbAdapter db) {
+                    db.checkClientSummary(false);
+                }
+            },
+        };
+    }
+
+    /**
+     * Read the rows as ClientRowCursorAdapter.bindView does
+     *
+     * @return the number of rows read
+     */
+    private static int bindClients(Cursor c) {
+        int client = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_CLIENT);
+        int phone = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_PHONE);
+        int hasOverdue = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_HASOVERDUE);
+        CharArrayBuffer clientBuf = new CharArrayBuffer(32);
+        CharArrayBuffer phoneBuf = new CharArrayBuffer(16);
+        while (c.moveToNext()) {
+            c.copyStringToBuffer(client, clientBuf);
+            c.copyStringToBuffer(phone, phoneBuf);
+            c.getInt(hasOverdue);
+        }
+        return c.getCount();
+    }
+
+    /**
+     * Read the rows as ClientLoanRowCursorAdapter.bindView does
+     */
+    private static void bindLoans(Cursor c) {
+        int maturityDate = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_MATURITYDATE);
+        int debt = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_DEBT);
+        int totalRepayment = c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_TOTALREPAYMENT);
+        char[] buf = new char[Money.MAX_FORMATTED_LENGTH];
+        while (c.moveToNext()) {
+            c.getLong(maturityDate);
+            Money.FormatPlainCurrency(c.getLong(debt), buf, 0);
+            long total = c.getLong(totalRepayment);
+            if (total != Long.MAX_VALUE) {
+                Money.FormatCurrency(total, buf, 0);
+            }
+        }
+    }
+
+    /**
+     * @return the median time of the path in microseconds
+     */
+    private static long time(LoanSharkrDbAdapter db, Path path) {
+        long[] times = new long[REPEATS];
+        for (int i = 0; i < REPEATS; i++) {
+            long start = System.nanoTime();
+            path.run(db);
+            times[i] = (System.nanoTime() - start) / 1000;
+        }
+        Arrays.sort(times);
+        return times[REPEATS / 2];
+    }
+
+    private static long findClient(LoanSharkrDbAdapter db, String name) {
+        Cursor c = db.searchClients(name, 0, 1);
+        if (c == null) {
+            return -1;
+        }
+        try {
+            return c.moveToFirst() ? c.getLong(c.getColumnIndexOrThrow(LoanSharkrDbAdapter.KEY_ROWID)) : -1;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Write the median time of each path at each step, with how much the
+     * rows and the time grew from the step before
+     */
+    private void report(Path[] paths) {
+        File file = new File(getContext().getFilesDir(), REPORT_FILE);
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new FileWriter(file));
+            for (Path path : paths) {
+                out.println(path.mName);
+                out.println(String.format("%10s %10s %12s %8s %8s", "clients", "loans", "ms", "rows x", "time x"));
+                long[] previous = null;
+                for (long[] result : path.mResults) {
+                    double ms = result[2] / 1000.0;
+                    String line = String.format("%10d %10d %12.3f", result[0], result[1], ms);
+                    if (previous != null) {
+                        double rowGrowth = (result[0] + result[1]) / (double) Math.max(previous[0] + previous[1], 1);
+                        double timeGrowth = result[2] / (double) Math.max(previous[2], 1);
+                        line += String.format(" %8.1f %8.1f", rowGrowth, timeGrowth);
+                        if (ms >= MIN_FLAGGED_MS && timeGrowth > rowGrowth * SUPERLINEAR) {
+                            line += "  SUPERLINEAR";
+                        }
+                    }
+                    out.println(line);
+                    Log.i(TAG, path.mName + " " + line);
+                    previous = result;
+                }
+                out.println();
+            }
+            if (out.checkError()) {
+                Log.e(TAG, "Could not write " + file);
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Could not write " + file, e);
+        }
+        finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.djpsoft.loansharkr.tests;
+
+import java.io.File;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.djpsoft.loansharkr.LoanSharkrDbAdapter;
+
+/**
+ * Times 100,000 client inserts and updates done the way the adapter used to
+ * (ContentValues and a where clause built by concatenation, so every call is
+ * parsed and planned again) and the way it does now (a statement compiled
+ * once and run with bound parameters). The per-operation latencies are
+ * logged under the tag StatementCacheBenchmark.
+ *
+ * Each run is one transaction so the time is spent on the statements rather
+ * than on committing them.
+ */
+public class StatementCacheBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "StatementCacheBenchmark";
+    private static final String DATABASE = "statement_benchmark";
+
+    private static final int OPERATIONS = 100000;
+
+    // the statements of LoanSharkrDbAdapter.createClient and updateClient
+    private static final String SQL_INSERT_CLIENT =
+        "insert into clients (client, phone, notes) values (?, ?, ?);";
+
+    private static final String SQL_UPDATE_CLIENT =
+        "update clients set client = ?, phone = ?, notes = ? where _id = ?;";
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE);
+        // let the adapter create the schema, triggers included
+        new LoanSharkrDbAdapter(getContext(), DATABASE).open().close();
+        File path = getContext().getDatabasePath(DATABASE);
+        mDb = SQLiteDatabase.openOrCreateDatabase(path, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        getContext().deleteDatabase(DATABASE);
+        super.tearDown();
+    }
+
+    public void testConcatenated() {
+        long start = System.nanoTime();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < OPERATIONS; i++) {
+                ContentValues values = new ContentValues();
+                values.put(LoanSharkrDbAdapter.KEY_CLIENT, "Client " + i);
+                values.put(LoanSharkrDbAdapter.KEY_PHONE, "555 0100");
+                values.put(LoanSharkrDbAdapter.KEY_NOTES, "");
+                mDb.insert("clients", null, values);
+            }
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+        }
+        report("insert, concatenated", start);
+
+        start = System.nanoTime();
+        mDb.beginTransaction();
+        try {
+            for (int i = 1; i <= OPERATIONS; i++) {
+                ContentValues values = new ContentValues();
+                values.put(LoanSharkrDbAdapter.KEY_CLIENT, "Client " + i);
+                values.put(LoanSharkrDbAdapter.KEY_PHONE, "555 0101");
+                values.put(LoanSharkrDbAdapter.KEY_NOTES, "Updated");
+                assertEquals(1, mDb.update("clients", values, LoanSharkrDbAdapter.KEY_ROWID + "=" + i, null));
+            }
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+        }
+        report("update, concatenated", start);
+    }
+
+    public void testCompiled() {
+        SQLiteStatement insert = mDb.compileStatement(SQL_INSERT_CLIENT);
+        SQLiteStatement update = mDb.compileStatement(SQL_UPDATE_CLIENT);
+        try {
+            long start = System.nanoTime();
+            mDb.beginTransaction();
+            try {
+                for (int i = 0; i < OPERATIONS; i++) {
+                    insert.bindString(1, "Client " + i);
+                    insert.bindString(2, "555 0100");
+                    insert.bindString(3, "");
+                    insert.executeInsert();
+                }
+                mDb.setTransactionSuccessful();
+            }
+            finally {
+                mDb.endTransaction();
+            }
+            report("insert, compiled", start);
+
+            start = System.nanoTime();
+            mDb.beginTransaction();
+            try {
+                for (int i = 1; i <= OPERATIONS; i++) {
+                    update.bindString(1, "Client " + i);
+                    update.bindString(2, "555 0101");
+                    update.bindString(3, "Updated");
+                    update.bindLong(4, i);
+                    update.execute();
+                }
+                mDb.setTransactionSuccessful();
+            }
+            finally {
+                mDb.endTransaction();
+            }
+            report("update, compiled", start);
+        }
+        finally {
+            insert.close();
+            update.close();
+        }
+        SQLiteStatement count = mDb.compileStatement("select count(*) from clients where notes = 'Updated';");
+        try {
+            assertEquals(OPERATIONS, count.simpleQueryForLong());
+        }
+        finally {
+            count.close();
+        }
+    }
+
+    private static void report(String what, long start) {
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, what + ": " + OPERATIONS + " in " + elapsed / 1000000 + " ms, "
+                + elapsed / OPERATIONS + " ns each");
+    }
+}